@@ -20,15 +20,18 @@ import java.util.Map;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.unseen.proxy.ref.RefException;
-import org.unseen.proxy.ref.Transformer;
+import org.unseen.proxy.ref.UpdatableTransformer;
 
 
 /**
+ * The service object does not change with the attributes of its
+ * ServiceReference so an update has nothing to do.
+ * 
  * @author Todor Boev
  *
  * @param <V>
  */
-public class ImportTransformer<V> implements Transformer<ServiceReference/*<V>*/, V> {
+public class ImportTransformer<V> implements UpdatableTransformer<ServiceReference/*<V>*/, V> {
   private final BundleContext bc;
   
   public ImportTransformer(BundleContext bc) {
@@ -46,6 +49,10 @@ public class ImportTransformer<V> implements Transformer<ServiceReference/*<V>*/
     return val;
   }
 
+  public void update(V val, ServiceReference arg, Map<String, Object> props) {
+    /* Nothing to do */
+  }
+  
   public void unmap(V val, ServiceReference arg, Map<String, Object> props) {
     bc.ungetService(arg);
   }
@@ -30,6 +30,7 @@ import org.unseen.proxy.ref.Ref;
 import org.unseen.proxy.ref.RefFactory;
 import org.unseen.proxy.ref.RefFactoryCombinator;
 import org.unseen.proxy.ref.Transformer;
+import org.unseen.proxy.ref.UpdatableTransformer;
 
 
 /**
@@ -38,7 +39,7 @@ import org.unseen.proxy.ref.Transformer;
  * @param <A>
  */
 public class MultipleExportTransformer<A, V> implements
-    Transformer<Transformer<Bundle, A>, ServiceRegistration/* V */> {
+    UpdatableTransformer<Transformer<Bundle, A>, ServiceRegistration/* V */> {
   
   private final RefFactoryCombinator<A, V> combinator;
   private final BundleContext bc;
@@ -79,6 +80,11 @@ public class MultipleExportTransformer<A, V> implements
         toDictionaryAttrs(props));
   }
 
+  public void update(ServiceRegistration val, Transformer<Bundle, A> arg, 
+      Map<String, Object> props) {
+    val.setProperties(toDictionaryAttrs(props));
+  }
+  
   public void unmap(ServiceRegistration val, Transformer<Bundle, A> arg, Map<String, Object> props) {
     val.unregister();
   }
@@ -21,6 +21,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.osgi.framework.ServiceReference;
 import org.unseen.proxy.gen.Proxy;
@@ -52,6 +53,18 @@ public class MultipleImport<V> implements ServiceTrackerListener {
   public MultipleImport(final Class<V> valType, final RefFactory<ServiceReference, V> refs,
       final ProxyFactory proxies) {
     
+    this(valType, refs, proxies, 0);
+  }
+  
+  /**
+   * @param valType
+   * @param refs
+   * @param proxies
+   * @param damping how long in nanoseconds the callers wait for the services.
+   */
+  public MultipleImport(final Class<V> valType, final RefFactory<ServiceReference, V> refs,
+      final ProxyFactory proxies, final long damping) {
+    
     this.cache = Collections.synchronizedMap(new HashMap<ServiceReference, V>());
     
     this.iterable = Refs.ref(new TransformerAdapter<Void, Iterable<V>>() {
@@ -76,6 +89,7 @@ public class MultipleImport<V> implements ServiceTrackerListener {
 
                   if (proxy == null) {
                     ref = refs.ref();
+                    ref.damp(damping, TimeUnit.NANOSECONDS);
                     proxy = proxies.proxy(valType, ref);
                     cache.put(sref, proxy);
                   }
@@ -97,6 +111,7 @@ public class MultipleImport<V> implements ServiceTrackerListener {
       }
     });
     
+    this.iterable.damp(damping, TimeUnit.NANOSECONDS);
     this.iterableProxy = proxies.proxy(Iterable.class, iterable);
   }
   
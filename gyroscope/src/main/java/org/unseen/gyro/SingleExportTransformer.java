@@ -22,7 +22,7 @@ import java.util.Map;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
-import org.unseen.proxy.ref.Transformer;
+import org.unseen.proxy.ref.UpdatableTransformer;
 
 
 /**
@@ -31,7 +31,9 @@ import org.unseen.proxy.ref.Transformer;
  * @param <A>
  * @param <ServiceRegistration>
  */
-public class SingleExportTransformer<A, V> implements Transformer<A, ServiceRegistration/*<V>*/> {
+public class SingleExportTransformer<A, V> implements
+    UpdatableTransformer<A, ServiceRegistration/*<V>*/> {
+  
   private final BundleContext bc;
   private final String[] iface;
   
@@ -44,6 +46,10 @@ public class SingleExportTransformer<A, V> implements Transformer<A, ServiceRegi
     return bc.registerService(iface, arg, toDictionaryAttrs(props));
   }
 
+  public void update(ServiceRegistration val, A arg, Map<String, Object> props) {
+    val.setProperties(toDictionaryAttrs(props));
+  }
+  
   public void unmap(ServiceRegistration val, A arg, Map<String, Object> props) {
     val.unregister();
   }
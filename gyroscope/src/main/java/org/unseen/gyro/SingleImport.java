@@ -17,6 +17,8 @@ package org.unseen.gyro;
 
 import static org.unseen.gyro.Attributes.toMapAttrs;
 
+import java.util.concurrent.TimeUnit;
+
 import org.osgi.framework.ServiceReference;
 import org.unseen.proxy.gen.ProxyFactory;
 import org.unseen.proxy.ref.Ref;
@@ -34,8 +36,22 @@ public class SingleImport<V> implements ServiceTrackerListener {
   
   public SingleImport(Class<V> type, RefFactory<ServiceReference, V> fact, ProxyFactory proxies,
       final boolean hotswap) {
+    
+    this(type, fact, proxies, hotswap, 0);
+  }
+  
+  /**
+   * @param type
+   * @param fact
+   * @param proxies
+   * @param hotswap
+   * @param damping how long in nanoseconds the callers wait for a missing service.
+   */
+  public SingleImport(Class<V> type, RefFactory<ServiceReference, V> fact, ProxyFactory proxies,
+      final boolean hotswap, long damping) {
 
     this.ref = fact.ref();
+    this.ref.damp(damping, TimeUnit.NANOSECONDS);
     this.proxy = proxies.proxy(type, this.ref);
     this.hotswap = hotswap;
   }
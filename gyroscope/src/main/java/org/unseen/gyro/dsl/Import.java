@@ -16,6 +16,7 @@
 package org.unseen.gyro.dsl;
 
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.unseen.proxy.ref.Transformer;
 
@@ -31,6 +32,12 @@ public interface Import {
     <N> Builder<A, N> as(Class<N> type, Transformer<V, N> fact);
     
     Builder<A, V> attributes(Map<String, Object> attrs);
+    
+    /**
+     * Calls to the imported service wait up to timeout for the service to come
+     * back rather than fail right away.
+     */
+    Builder<A, V> damped(long timeout, TimeUnit unit);
   }
   
   interface ModeSelector<T> {
@@ -18,6 +18,7 @@ package org.unseen.gyro.dsl;
 import static org.unseen.gyro.Attributes.filter;
 
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -51,18 +52,21 @@ public class ImportImpl<A, V> implements Builder<A, V> {
   private final Class<V> valType;
   private final RefFactoryCombinator<A, V> combinator;
   private final Map<String, Object> attrs;
+  /** In nanoseconds */
+  private long damping;
   
   private final ProxyFactory proxies;
   private final BundleContext root;
   
   public ImportImpl(Class<A> argType, Class<V> valType, RefFactoryCombinator<A, V> combinator, 
-      Map<String, Object> attrs, BundleContext root, ProxyFactory proxies) {
+      Map<String, Object> attrs, long damping, BundleContext root, ProxyFactory proxies) {
     
     this.argType = argType;
     this.valType = valType;
     this.combinator = combinator;
     
     this.attrs = attrs;
+    this.damping = damping;
     
     this.root = root;
     this.proxies = proxies;
@@ -73,12 +77,19 @@ public class ImportImpl<A, V> implements Builder<A, V> {
     return this;
   }
   
+  public Builder<A, V> damped(long timeout, TimeUnit unit) {
+    this.damping = unit.toNanos(timeout);
+    return this;
+  }
+  
   public <N> Builder<N, V> from(Class<N> newArgType, Transformer<N, A> fact) {
-    return new ImportImpl<N, V>(newArgType, valType, combinator.from(fact), attrs, root, proxies);
+    return new ImportImpl<N, V>(newArgType, valType, combinator.from(fact), attrs, damping, root,
+        proxies);
   }
 
   public <N> Builder<A, N> as(Class<N> newValType, Transformer<V, N> fact) {
-    return new ImportImpl<A, N>(argType, newValType, combinator.to(fact), attrs, root, proxies);
+    return new ImportImpl<A, N>(argType, newValType, combinator.to(fact), attrs, damping, root,
+        proxies);
   }
   
   public V single() {
@@ -89,7 +100,7 @@ public class ImportImpl<A, V> implements Builder<A, V> {
     /* Finish the chain with a ref that can actually import from OSGi */
     RefFactory<ServiceReference, V> importer = combinator.from(new ImportTransformer<A>(root)).factory();
      
-    SingleImport<V> assembly = new SingleImport<V>(valType, importer, proxies, false);
+    SingleImport<V> assembly = new SingleImport<V>(valType, importer, proxies, false, damping);
     
     /*
      * Set the type we're looking for. This will override any user supplied
@@ -125,7 +136,7 @@ public class ImportImpl<A, V> implements Builder<A, V> {
     /* Finish the chain with a ref that can actually import from OSGi */
     RefFactory<ServiceReference, V> importer = combinator.from(new ImportTransformer<A>(root)).factory();
      
-    MultipleImport<V> assembly = new MultipleImport<V>(valType, importer, proxies);
+    MultipleImport<V> assembly = new MultipleImport<V>(valType, importer, proxies, damping);
     
     /*
      * Set the type we're looking for. This will override any user supplied
@@ -22,9 +22,13 @@ import java.util.HashMap;
 
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
 import org.unseen.proxy.gen.Proxy;
 import org.unseen.proxy.gen.ProxyFactory;
+import org.unseen.proxy.gen.ProxyMode;
 import org.unseen.proxy.impl.ProxyClassLoader;
+import org.unseen.proxy.impl.ProxyClassSpace;
 import org.unseen.proxy.impl.ProxyFactoryImpl;
 import org.unseen.proxy.ref.Ref;
 import org.unseen.proxy.ref.Transformers;
@@ -37,6 +41,9 @@ import org.unseen.proxy.ref.Transformers;
  */
 public abstract class RefContainerImpl implements RefContainer, BundleActivator {
   private ProxyFactory fact;
+  /** Remembers what the bundle space found so it must follow the wiring */
+  private ProxyClassLoader loader;
+  private SynchronousBundleListener wiring;
   /** We treat this as the first external service received */
   private Ref<BundleContext, BundleContext> bcRef;
   /**
@@ -51,7 +58,7 @@ public abstract class RefContainerImpl implements RefContainer, BundleActivator
    */
   public <T> Import.Builder<T, T> require(Class<T> iface) {
     return new ImportImpl<T, T>(iface, iface, combinator(Transformers.<T>identity()),
-        new HashMap<String, Object>(), bc, fact);
+        new HashMap<String, Object>(), 0, bc, fact);
   }
 
   /**
@@ -103,8 +110,29 @@ public abstract class RefContainerImpl implements RefContainer, BundleActivator
      * RefContainerImpl.class. Generally getClass() always returns the true
      * runtime type of the object - not the type of the class file in which the
      * code calling getClass() resides.
+     * 
+     * The proxies are damped but the imports are not unless the user asks so by
+     * default they fail right away just like locked proxies.
+     * 
+     * The generated proxy classes are shared with all other bundles.
      */
-    this.fact = new ProxyFactoryImpl(new ProxyClassLoader(getClass().getClassLoader()));
+    this.loader = new ProxyClassLoader(getClass().getClassLoader(), ProxyClassSpace.system());
+    this.fact = new ProxyFactoryImpl(loader, ProxyMode.DAMPED);
+    
+    /* The wiring of any bundle can change what this one sees */
+    final ProxyClassLoader lookups = loader;
+    this.wiring = new SynchronousBundleListener() {
+      public void bundleChanged(BundleEvent event) {
+        switch (event.getType()) {
+        case BundleEvent.RESOLVED:
+        case BundleEvent.UNRESOLVED:
+        case BundleEvent.UPDATED:
+          lookups.invalidate();
+          break;
+        }
+      }
+    };
+    bc.addBundleListener(wiring);
     
     this.bcRef = ref(Transformers.<BundleContext>identity());
     this.bc = fact.proxy(BundleContext.class, bcRef);
@@ -120,6 +148,7 @@ public abstract class RefContainerImpl implements RefContainer, BundleActivator
    * @see org.osgi.framework.BundleActivator#stop(org.osgi.framework.BundleContext)
    */
   public final void stop(BundleContext bc) {
+    bc.removeBundleListener(wiring);
     bcRef.unbind();
     
     /*
@@ -130,5 +159,10 @@ public abstract class RefContainerImpl implements RefContainer, BundleActivator
      */
     bcRef = null;
     bc = null;
+    
+    /* The bundle may come back with a new wiring */
+    loader.invalidate();
+    loader = null;
+    wiring = null;
   }
 }
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.gyro;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.unseen.proxy.gen.ProxyMode;
+import org.unseen.proxy.impl.ProxyClassLoader;
+import org.unseen.proxy.impl.ProxyFactoryImpl;
+import org.unseen.proxy.ref.RefFactory;
+import org.unseen.proxy.ref.Refs;
+import org.unseen.proxy.ref.Transformer;
+import org.unseen.proxy.ref.Transformers;
+import org.unseen.proxy.ref.UpdatableTransformerAdapter;
+
+/**
+ * @author Todor Boev
+ */
+public class SingleImportTest {
+  public interface Hello {
+    String hello();
+  }
+
+  /**
+   * Test a MODIFIED event reaches the user's wrapper in place when the import
+   * chain is built the way the DSL builds it.
+   */
+  @Test
+  public void testModified() {
+    final int[] maps = new int[1];
+
+    Transformer<Hello, Hello> wrap = new UpdatableTransformerAdapter<Hello, Hello>() {
+      public Hello map(Hello arg, Map<String, Object> props) {
+        maps[0]++;
+        return new Greeting(arg, props);
+      }
+
+      @Override
+      public void update(Hello val, Hello arg, Map<String, Object> props) {
+        ((Greeting) val).lang = (String) props.get("lang");
+      }
+    };
+
+    Hello service = new Hello() {
+      public String hello() {
+        return "hello";
+      }
+    };
+
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("lang", "en");
+    ServiceReference sref = reference(props);
+
+    RefFactory<ServiceReference, Hello> fact = Refs.combinator(Transformers.<Hello>identity())
+      .to(wrap)
+      .from(new ImportTransformer<Hello>(context(service)))
+      .factory();
+
+    SingleImport<Hello> imp = new SingleImport<Hello>(Hello.class, fact,
+        new ProxyFactoryImpl(new ProxyClassLoader(SingleImportTest.class.getClassLoader()),
+            ProxyMode.DIRECT),
+        false);
+
+    imp.added(null, sref);
+    assertEquals("en hello", imp.proxy().hello());
+
+    props.put("lang", "de");
+    imp.modified(null, sref);
+    assertEquals("de hello", imp.proxy().hello());
+    assertEquals(1, maps[0]);
+  }
+
+  private static class Greeting implements Hello {
+    private final Hello delegate;
+    private volatile String lang;
+
+    public Greeting(Hello delegate, Map<String, Object> props) {
+      this.delegate = delegate;
+      this.lang = (String) props.get("lang");
+    }
+
+    public String hello() {
+      return lang + " " + delegate.hello();
+    }
+  }
+
+  private static BundleContext context(final Object service) {
+    return (BundleContext) Proxy.newProxyInstance(
+        SingleImportTest.class.getClassLoader(),
+        new Class<?>[] {BundleContext.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("getService".equals(method.getName())) {
+              return service;
+            }
+            if ("ungetService".equals(method.getName())) {
+              return true;
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private static ServiceReference reference(final Map<String, Object> props) {
+    return (ServiceReference) Proxy.newProxyInstance(
+        SingleImportTest.class.getClassLoader(),
+        new Class<?>[] {ServiceReference.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("getPropertyKeys".equals(method.getName())) {
+              return props.keySet().toArray(new String[props.size()]);
+            }
+            if ("getProperty".equals(method.getName())) {
+              return props.get(args[0]);
+            }
+            if ("equals".equals(method.getName())) {
+              return proxy == args[0];
+            }
+            if ("hashCode".equals(method.getName())) {
+              return System.identityHashCode(proxy);
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.gen;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface as the asynchronous companion of value(). Every method of
+ * the companion must have the name and the parameters of a method of value()
+ * and return a {@link java.util.concurrent.Future} of the result. A proxy of the
+ * companion generated in {@link ProxyMode#ASYNC} mode runs every call on an
+ * executor against the service of type value().
+ *
+ * <pre>
+ * &#064;Async(Hello.class)
+ * interface HelloAsync {
+ *   Future&lt;String&gt; hello(String name);
+ * }
+ * </pre>
+ *
+ * @author Todor Boev
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Async {
+  Class<?> value();
+}
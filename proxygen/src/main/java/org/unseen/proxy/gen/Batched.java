@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.gen;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Tunes the proxies of an interface generated in {@link ProxyMode#BATCHED}
+ * mode. Interfaces without it get the defaults.
+ *
+ * @author Todor Boev
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Batched {
+  /**
+   * What a caller does when the queue of it's proxy is full.
+   */
+  enum Overflow {
+    /** Wait for room in the queue */
+    BLOCK,
+    /** Drop the call */
+    DROP,
+    /** Deliver the queue and the call in the calling thread */
+    CALLER_RUNS;
+  }
+
+  /**
+   * @return how many calls a proxy can queue.
+   */
+  int capacity() default 1024;
+
+  /**
+   * @return at most how many calls are delivered while holding the Ref lock.
+   */
+  int batch() default 64;
+
+  Overflow overflow() default Overflow.BLOCK;
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.gen;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface method whose result depends only on it's arguments and on
+ * the service behind the proxy. Proxies generated in
+ * {@link ProxyMode#MEMOIZED} mode remember the results of such methods until
+ * the service is updated or unbound. Methods that return nothing are never
+ * cached.
+ *
+ * @author Todor Boev
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cacheable {
+  /**
+   * @return how many results to keep per proxy.
+   */
+  int size() default 1024;
+
+  /**
+   * @return how many milliseconds a result is kept. 0 keeps it until the
+   *         service changes.
+   */
+  long ttl() default 0;
+}
@@ -15,8 +15,33 @@
  */
 package org.unseen.proxy.gen;
 
+import java.util.List;
+import java.util.concurrent.Executor;
+
 import org.unseen.proxy.ref.Ref;
 
 public interface ProxyFactory {
   <V> V proxy(Class<?> type, Ref<?, V> ref);
+  
+  /**
+   * Creates one proxy per Ref. Cheaper than calling proxy() for each Ref.
+   * 
+   * @param type
+   * @param refs
+   * @return the proxies in the order of the Refs.
+   */
+  <V> List<V> proxies(Class<?> type, List<? extends Ref<?, V>> refs);
+  
+  /**
+   * Creates a proxy that runs the calls to the service behind a Ref on an
+   * executor.
+   * 
+   * @param companion an interface marked {@link Async} with the service
+   *        interface as value.
+   * @param ref
+   * @param exec runs the calls. If <code>null</code> a shared pool of daemon
+   *        threads is used.
+   * @return
+   */
+  <A> A async(Class<A> companion, Ref<?, ?> ref, Executor exec);
 }
\ No newline at end of file
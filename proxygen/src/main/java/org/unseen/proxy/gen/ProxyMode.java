@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.gen;
+
+import org.unseen.proxy.ref.Ref;
+
+/**
+ * Selects the code generated for every method of a proxy class. Proxies of
+ * different modes are different classes and can coexist in the same class
+ * space.
+ *
+ * @author Todor Boev
+ */
+public enum ProxyMode {
+  /**
+   * Every call holds {@link Ref#lock()} while it runs. unbind() waits for all
+   * calls in progress to complete.
+   */
+  LOCKED,
+
+  /**
+   * Every call reads the {@link Ref#binding()} snapshot and never writes to
+   * shared memory. unbind() does not wait for the calls in progress so a call
+   * can still reach a delegate that is being unbound.
+   */
+  OPTIMISTIC,
+  
+  /**
+   * Every call jumps straight to a delegate cached in the proxy. The Ref
+   * retargets the cache synchronously on every state transition. Calls in
+   * progress are treated as in {@link #OPTIMISTIC} mode.
+   */
+  DIRECT,
+  
+  /**
+   * Like {@link #LOCKED} but a call that finds the Ref unbound waits for it to
+   * be bound again. How long is set per Ref with {@link Ref#damp(long,
+   * java.util.concurrent.TimeUnit)}. Smooths over service updates during which
+   * the Ref is unbound for a short time.
+   */
+  DAMPED,
+  
+  /**
+   * Like {@link #LOCKED} but every method counts it's calls, failures and
+   * latencies. The meters of a proxy are listed by
+   * {@link org.unseen.proxy.impl.MethodMeter#meters(Object)}. Only proxies of
+   * this mode pay for the metering.
+   */
+  METERED,
+  
+  /**
+   * Like {@link #LOCKED} but the results of the methods marked
+   * {@link Cacheable} are remembered per proxy and per arguments until the Ref
+   * is updated or unbound.
+   */
+  MEMOIZED,
+  
+  /**
+   * For interfaces marked {@link Async}. Every call is checked against the
+   * {@link Ref} right away and then runs on an executor while holding
+   * {@link Ref#lock()}. The result is delivered through a
+   * {@link java.util.concurrent.Future}.
+   */
+  ASYNC,
+  
+  /**
+   * Like {@link #LOCKED} but the calls to void methods are queued and
+   * delivered in the background in batches. Every batch holds
+   * {@link Ref#lock()} once. The queue is tuned with {@link Batched} and is
+   * delivered before the Ref is unbound.
+   */
+  BATCHED;
+}
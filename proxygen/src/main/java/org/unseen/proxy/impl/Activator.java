@@ -15,6 +15,9 @@
  */
 package org.unseen.proxy.impl;
 
+import java.io.File;
+
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.unseen.proxy.gen.ProxyFactory;
@@ -26,10 +29,40 @@ import org.unseen.proxy.gen.ProxyFactory;
  * @version $Revision$
  */
 public class Activator implements BundleActivator {
+	private ProxyExtender extender;
+	
 	public void start(BundleContext context) throws Exception {
-		context.registerService(ProxyFactory.class.getName(), new ProxyFactoryServiceFactory(), null);
+		/* One space for the factories, the extender and gyroscope */
+		ProxyClassSpace space = ProxyClassSpace.system();
+		
+		/* Keep the generated classes in our data area unless told otherwise */
+		if (ProxyClassCache.system() == null) {
+			File dir = context.getDataFile("proxies");
+			if (dir != null) {
+				space.setDisk(new ProxyClassCache(dir));
+			}
+		}
+		
+		/* Lets the management tools see how many classes the sharing saved */
+		context.registerService(ProxyClassSpace.class.getName(), space, null);
+		
+		ProxyFactoryServiceFactory fact = new ProxyFactoryServiceFactory(space);
+		context.addBundleListener(fact);
+		context.registerService(ProxyFactory.class.getName(), fact, null);
+		
+		/* Prepare the proxies of the gyroscope bundles before they start */
+		extender = new ProxyExtender(space);
+		context.addBundleListener(extender);
+		for (Bundle bundle : context.getBundles()) {
+			if (bundle.getState() == Bundle.RESOLVED) {
+				extender.pregenerate(bundle);
+			}
+		}
   }
 
 	public void stop(BundleContext context) throws Exception {
+		context.removeBundleListener(extender);
+		extender.close();
+		extender = null;
   }
 }
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+
+import org.objectweb.asm.Type;
+import org.unseen.proxy.gen.Async;
+import org.unseen.proxy.gen.ProxyException;
+import org.unseen.proxy.ref.Ref;
+
+/**
+ * Runs the calls of a proxy generated in
+ * {@link org.unseen.proxy.gen.ProxyMode#ASYNC} mode. A call fails right away if
+ * the Ref is not bound when it is made. Otherwise it is queued on the executor
+ * and runs against whatever the Ref is bound to at that time while holding the
+ * Ref lock.
+ *
+ * Used by the generated code so it must stay public.
+ *
+ * @author Todor Boev
+ */
+public final class AsyncSite {
+  /**
+   * The target methods of the companion methods of a proxy class. Shared by all
+   * proxies of the class.
+   */
+  public static final class Table {
+    private final Method[] methods;
+
+    private Table(Method[] methods) {
+      this.methods = methods;
+      for (Method m : methods) {
+        /* The interface can be visible to the proxy but not to us */
+        m.setAccessible(true);
+      }
+    }
+  }
+
+  /** Used when the proxy is not given an executor. Also drains the {@link Batcher}s. */
+  static final ExecutorService DEFAULT = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread res = new Thread(r, "Async proxy call");
+      res.setDaemon(true);
+      return res;
+    }
+  });
+
+  private final Ref<?, ?> ref;
+  private final Table table;
+  private final Executor exec;
+
+  /**
+   * @param ref
+   * @param table
+   * @param exec if <code>null</code> a shared pool of daemon threads is used.
+   */
+  public AsyncSite(Ref<?, ?> ref, Table table, Executor exec) {
+    this.ref = ref;
+    this.table = table;
+    this.exec = (exec != null) ? exec : DEFAULT;
+  }
+
+  /**
+   * Called from the static initializer of a proxy class.
+   *
+   * @param proxyClass
+   * @param sigs name and parameter descriptor of every companion method.
+   * @return
+   */
+  public static Table table(Class<?> proxyClass, String[] sigs) {
+    Class<?> target = null;
+    for (Class<?> iface : proxyClass.getInterfaces()) {
+      Async async = iface.getAnnotation(Async.class);
+      if (async != null) {
+        target = async.value();
+      }
+    }
+    if (target == null) {
+      throw new ProxyException(proxyClass + ": Does not implement an @Async interface");
+    }
+
+    Method[] methods = new Method[sigs.length];
+    for (Method m : target.getMethods()) {
+      String desc = Type.getMethodDescriptor(m);
+      String sig = m.getName() + desc.substring(0, desc.indexOf(')') + 1);
+      for (int i = 0; i < sigs.length; i++) {
+        if (methods[i] == null && sigs[i].equals(sig)) {
+          methods[i] = m;
+        }
+      }
+    }
+
+    for (int i = 0; i < sigs.length; i++) {
+      if (methods[i] == null) {
+        throw new ProxyException(target + ": No method " + sigs[i]);
+      }
+    }
+    return new Table(methods);
+  }
+
+  /**
+   * @param method index of the target method in the table.
+   * @param args
+   * @return the future result of the call.
+   * @throws org.unseen.proxy.ref.RefUnboundException if the Ref is not bound.
+   */
+  public Future<Object> submit(final int method, final Object[] args) {
+    /* Fail the way the Ref wants */
+    ref.binding().val();
+
+    FutureTask<Object> res = new FutureTask<Object>(new Callable<Object>() {
+      public Object call() throws Exception {
+        Lock lock = ref.lock();
+        lock.lock();
+        try {
+          return table.methods[method].invoke(ref.binding().val(), args);
+        } catch (InvocationTargetException exc) {
+          Throwable cause = exc.getCause();
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw (Exception) cause;
+        } finally {
+          lock.unlock();
+        }
+      }
+    });
+
+    exec.execute(res);
+    return res;
+  }
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.objectweb.asm.Type;
+import org.unseen.proxy.gen.Batched;
+import org.unseen.proxy.gen.ProxyException;
+import org.unseen.proxy.ref.Binding;
+import org.unseen.proxy.ref.Ref;
+import org.unseen.proxy.ref.RefListenerAdapter;
+import org.unseen.proxy.ref.RefUnboundException;
+
+/**
+ * Queues the calls to the void methods of a proxy generated in
+ * {@link org.unseen.proxy.gen.ProxyMode#BATCHED} mode. The queue is drained in
+ * the background and every batch is delivered while holding the Ref lock once.
+ * The calls are delivered in the order they were queued. Whatever is queued
+ * when the Ref starts unbinding is delivered before the service goes away. A
+ * call that finds the Ref retired by a grace-period unbind still goes to the
+ * service that was bound when it was queued. All proxies of a class over the
+ * same Ref share one queue. The failures of the queued calls go to the
+ * uncaught exception handler of the draining thread.
+ *
+ * Used by the generated code so it must stay public.
+ *
+ * @author Todor Boev
+ */
+public final class Batcher extends RefListenerAdapter {
+  /**
+   * The queued methods of a proxy class and their settings. Shared by all
+   * proxies of the class.
+   */
+  public static final class Table {
+    private final Method[] methods;
+    private final int capacity;
+    private final int batch;
+    private final Batched.Overflow overflow;
+
+    private Table(Method[] methods, Batched conf) {
+      this.methods = methods;
+      this.capacity = (conf != null) ? conf.capacity() : 1024;
+      this.batch = (conf != null) ? conf.batch() : 64;
+      this.overflow = (conf != null) ? conf.overflow() : Batched.Overflow.BLOCK;
+
+      for (Method m : methods) {
+        /* The interface can be visible to the proxy but not to us */
+        m.setAccessible(true);
+      }
+    }
+  }
+
+  /**
+   * A queued call.
+   */
+  private static final class Call {
+    private final Binding<?, ?> binding;
+    private final int method;
+    private final Object[] args;
+
+    public Call(Binding<?, ?> binding, int method, Object[] args) {
+      this.binding = binding;
+      this.method = method;
+      this.args = args;
+    }
+  }
+
+  private final Ref<?, ?> ref;
+  private final Table table;
+  private final BlockingQueue<Call> queue;
+  /** Keeps the batches in order */
+  private final Lock draining;
+  /** Set while a drain is pending on the executor */
+  private final AtomicBoolean scheduled;
+  private final Runnable drainer;
+
+  private Batcher(Ref<?, ?> ref, Table table) {
+    this.ref = ref;
+    this.table = table;
+    this.queue = new ArrayBlockingQueue<Call>(table.capacity);
+    this.draining = new ReentrantLock();
+    this.scheduled = new AtomicBoolean();
+    this.drainer = new Runnable() {
+      public void run() {
+        scheduled.set(false);
+        drain(Batcher.this.table.batch);
+        if (!queue.isEmpty()) {
+          schedule();
+        }
+      }
+    };
+  }
+
+  /**
+   * Called from the constructor of every proxy.
+   *
+   * @param ref
+   * @param table
+   * @return the batcher of the proxy class over ref.
+   */
+  public static Batcher of(Ref<?, ?> ref, Table table) {
+    Batcher res = (Batcher) ref.attachment(table);
+    if (res == null) {
+      Batcher fresh = new Batcher(ref, table);
+      res = (Batcher) ref.attach(table, fresh);
+
+      /* Only the batcher that made it to the Ref listens to it */
+      if (res == fresh) {
+        ref.addListener(fresh);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Called from the static initializer of a proxy class.
+   *
+   * @param proxyClass
+   * @param sigs name and descriptor of every queued method.
+   * @return
+   */
+  public static Table table(Class<?> proxyClass, String[] sigs) {
+    Method[] methods = new Method[sigs.length];
+    Batched conf = null;
+
+    for (Class<?> iface : proxyClass.getInterfaces()) {
+      if (conf == null) {
+        conf = iface.getAnnotation(Batched.class);
+      }
+
+      for (Method m : iface.getMethods()) {
+        String sig = m.getName() + Type.getMethodDescriptor(m);
+        for (int i = 0; i < sigs.length; i++) {
+          if (methods[i] == null && sigs[i].equals(sig)) {
+            methods[i] = m;
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < sigs.length; i++) {
+      if (methods[i] == null) {
+        throw new ProxyException(proxyClass + ": No method " + sigs[i]);
+      }
+    }
+    return new Table(methods, conf);
+  }
+
+  /**
+   * @param method index of the method in the table.
+   * @param args
+   * @throws RefUnboundException if the Ref is not bound.
+   */
+  public void post(int method, Object[] args) {
+    Binding<?, ?> binding = ref.binding();
+    /* Fail the way the Ref wants */
+    binding.val();
+
+    Call call = new Call(binding, method, args);
+    if (queue.offer(call)) {
+      schedule();
+      return;
+    }
+
+    switch (table.overflow) {
+    case BLOCK:
+      try {
+        schedule();
+        queue.put(call);
+        schedule();
+      } catch (InterruptedException exc) {
+        /* Drop the call but let the caller know it was interrupted */
+        Thread.currentThread().interrupt();
+      }
+      break;
+
+    case CALLER_RUNS:
+      draining.lock();
+      try {
+        drain(Integer.MAX_VALUE);
+        
+        /* Fail like a locked proxy if the Ref went away */
+        Lock lock = ref.lock();
+        lock.lock();
+        try {
+          deliver(target(call), call);
+        } finally {
+          lock.unlock();
+        }
+      } finally {
+        draining.unlock();
+      }
+      break;
+
+    case DROP:
+      break;
+    }
+  }
+
+  @Override
+  public void unbinding() {
+    /* The service is still there - deliver everything before it goes away */
+    drain(Integer.MAX_VALUE);
+  }
+
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      AsyncSite.DEFAULT.execute(drainer);
+    }
+  }
+
+  /**
+   * Delivers up to max queued calls while holding the Ref lock once.
+   *
+   * @param max
+   */
+  private void drain(int max) {
+    List<Call> batch = new ArrayList<Call>();
+
+    draining.lock();
+    try {
+      queue.drainTo(batch, max);
+      if (batch.isEmpty()) {
+        return;
+      }
+
+      Lock lock = ref.lock();
+      lock.lock();
+      try {
+        for (Call call : batch) {
+          deliver(target(call), call);
+        }
+      } finally {
+        lock.unlock();
+      }
+    } finally {
+      draining.unlock();
+    }
+  }
+
+  /**
+   * Must be called while holding the Ref lock.
+   *
+   * @param call
+   * @return the service bound right now or the one call was queued for if the
+   *         Ref is retired.
+   */
+  private Object target(Call call) {
+    Binding<?, ?> binding = ref.binding();
+    return binding.isAvailable() ? binding.val() : call.binding.val();
+  }
+
+  /**
+   * @param val
+   * @param call
+   */
+  private void deliver(Object val, Call call) {
+    try {
+      table.methods[call.method].invoke(val, call.args);
+    } catch (InvocationTargetException exc) {
+      /* Nobody waits for the result so the failure can only be reported */
+      Failures.report(new ProxyException(ref + ": Queued call to "
+          + table.methods[call.method].getName() + " failed", exc.getCause()));
+    } catch (IllegalAccessException exc) {
+      throw new ProxyException(exc);
+    }
+  }
+}
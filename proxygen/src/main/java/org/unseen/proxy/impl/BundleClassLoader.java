@@ -19,16 +19,41 @@ import org.osgi.framework.Bundle;
 
 /**
  * Implements a class loader over a Bundle object. The Bundle has everything
- * needed except it does not extend ClassLoader.
+ * needed except it does not extend ClassLoader. What the bundle finds and does
+ * not find is remembered until {@link #invalidate()} is called.
  * 
  * @author Todor Boev
  * @version $Revision$
  */
 public class BundleClassLoader extends ClassLoader {
 	private final Bundle delegate;
+	private final LookupCache lookups;
 	
 	public BundleClassLoader(Bundle delegate) {
 		this.delegate = delegate;
+		this.lookups = new LookupCache();
+	}
+	
+	/**
+	 * Forget the past lookups. Called when the bundle is resolved, unresolved or
+	 * updated.
+	 */
+	public void invalidate() {
+		lookups.clear();
+	}
+	
+	@Override
+	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		Class<?> res = lookups.get(name);
+		if (res != null) {
+			return res;
+		}
+		
+		try {
+			return lookups.found(name, super.loadClass(name, resolve));
+		} catch (ClassNotFoundException exc) {
+			throw lookups.missing(name);
+		}
 	}
 	
 	@Override
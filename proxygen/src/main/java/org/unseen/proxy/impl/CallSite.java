@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import org.unseen.proxy.ref.Binding;
+import org.unseen.proxy.ref.BindingListener;
+import org.unseen.proxy.ref.Ref;
+import org.unseen.proxy.ref.RefUnboundException;
+
+/**
+ * Caches the current delegate of a {@link Ref} for the proxies generated in
+ * {@link org.unseen.proxy.gen.ProxyMode#DIRECT} mode. The Ref retargets the
+ * site synchronously on every state transition so a call only has to read one
+ * volatile field before it jumps to the delegate. Because the target is always
+ * the same for long stretches of time the JIT can inline the delegate right
+ * into the proxy method. All proxies of a Ref share the same site so the Ref
+ * has one listener no matter how many proxies it has.
+ * 
+ * Used by the generated code so it must stay public.
+ * 
+ * @author Todor Boev
+ */
+public final class CallSite implements BindingListener {
+  private final Ref<?, ?> ref;
+  
+  /** The current delegate or null if the Ref is not bound */
+  private volatile Object target;
+  
+  /** Set once the Ref has retargeted us at least once */
+  private boolean retargeted;
+  
+  /**
+   * @param ref
+   */
+  private CallSite(Ref<?, ?> ref) {
+    this.ref = ref;
+  }
+  
+  /**
+   * Called from the constructor of every proxy.
+   * 
+   * @param ref
+   * @return the call site of ref.
+   */
+  public static CallSite of(Ref<?, ?> ref) {
+    CallSite res = (CallSite) ref.attachment(CallSite.class);
+    if (res == null) {
+      CallSite fresh = new CallSite(ref);
+      res = (CallSite) ref.attach(CallSite.class, fresh);
+      
+      /* Until it starts the site sends the callers to the binding */
+      if (res == fresh) {
+        fresh.start();
+      }
+    }
+    return res;
+  }
+  
+  private void start() {
+    ref.addBindingListener(this);
+    
+    /* 
+     * Don't overwrite a transition that sneaked in after we registered with a
+     * snapshot that is older.
+     */
+    synchronized (this) {
+      if (!retargeted) {
+        retarget(ref.binding());
+      }
+    }
+  }
+  
+  /**
+   * @return the current delegate or the fallback of the Ref if it is not bound.
+   * @throws RefUnboundException if the Ref is not bound.
+   */
+  public Object target() {
+    Object res = target;
+    if (res == null) {
+      /* Let the Ref pick how to fail */
+      return ref.binding().val();
+    }
+    return res;
+  }
+  
+  public synchronized void published(Binding<?, ?> binding) {
+    retargeted = true;
+    retarget(binding);
+  }
+  
+  /**
+   * @param binding
+   */
+  private void retarget(Binding<?, ?> binding) {
+    target = binding.isAvailable() ? binding.val() : null;
+  }
+}
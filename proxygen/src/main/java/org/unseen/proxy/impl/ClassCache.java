@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Computes a value once per class and keeps it until the class goes away. The
+ * class is held weakly and the value softly. The values usually refer back to
+ * their class so a strong value would keep the class alive forever. A soft
+ * value that is not in use right now survives the ordinary collections so it
+ * is not computed again, but it gives way before the memory runs out. Once it
+ * does the class can go away too. Hits take no lock. Misses for different
+ * classes are computed in parallel while the callers that miss on the same
+ * class wait for the first one to finish.
+ *
+ * @author Todor Boev
+ */
+abstract class ClassCache<V> {
+  /**
+   * Weak key that compares the classes by identity.
+   */
+  private static final class Key extends WeakReference<Class<?>> {
+    private final int hash;
+
+    public Key(Class<?> type) {
+      super(type);
+      this.hash = System.identityHashCode(type);
+    }
+
+    public Key(Class<?> type, ReferenceQueue<Class<?>> queue) {
+      super(type, queue);
+      this.hash = System.identityHashCode(type);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Class<?> type = get();
+      return type != null && type == ((Key) obj).get();
+    }
+  }
+
+  /**
+   * Holds the value of a class. Also serves as the lock of the computation.
+   */
+  private static final class Slot<V> {
+    private volatile SoftReference<V> val;
+    
+    public V get() {
+      SoftReference<V> ref = val;
+      return ref != null ? ref.get() : null;
+    }
+    
+    public void set(V val) {
+      this.val = new SoftReference<V>(val);
+    }
+  }
+
+  private final ConcurrentMap<Key, Slot<V>> slots;
+  private final ReferenceQueue<Class<?>> queue;
+
+  public ClassCache() {
+    this.slots = new ConcurrentHashMap<Key, Slot<V>>();
+    this.queue = new ReferenceQueue<Class<?>>();
+  }
+
+  /**
+   * @param type
+   * @return the value of type.
+   */
+  public V get(Class<?> type) {
+    expunge();
+
+    Slot<V> slot = slots.get(new Key(type));
+    if (slot == null) {
+      Slot<V> fresh = new Slot<V>();
+      slot = slots.putIfAbsent(new Key(type, queue), fresh);
+      if (slot == null) {
+        slot = fresh;
+      }
+    }
+
+    V res = slot.get();
+    if (res != null) {
+      return res;
+    }
+
+    synchronized (slot) {
+      res = slot.get();
+      if (res == null) {
+        res = compute(type);
+        slot.set(res);
+      }
+      return res;
+    }
+  }
+
+  /**
+   * Called once per class unless the memory runs out and the value of the
+   * class is let go.
+   *
+   * @param type
+   * @return
+   */
+  protected abstract V compute(Class<?> type);
+
+  /**
+   * Drop the slots of the classes that went away.
+   */
+  private void expunge() {
+    Reference<? extends Class<?>> ref;
+    while ((ref = queue.poll()) != null) {
+      slots.remove(ref);
+    }
+  }
+}
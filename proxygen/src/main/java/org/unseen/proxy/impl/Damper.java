@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.unseen.proxy.ref.Binding;
+import org.unseen.proxy.ref.Ref;
+import org.unseen.proxy.ref.RefUnboundException;
+
+/**
+ * Entry point of the proxies generated in
+ * {@link org.unseen.proxy.gen.ProxyMode#DAMPED} mode. A call that finds the Ref
+ * unbound releases the lock and parks until the Ref is bound again or the
+ * damping of the Ref runs out. The callers are woken up by the Ref itself so
+ * nobody polls.
+ *
+ * Used by the generated code so it must stay public.
+ *
+ * @author Todor Boev
+ */
+public final class Damper {
+  private Damper() {
+  }
+
+  /**
+   * Takes the lock of ref and returns it's val. The lock is held on return and
+   * released on failure.
+   *
+   * @param ref
+   * @return the val of ref.
+   * @throws RefUnboundException if ref did not become bound in time.
+   */
+  public static Object lock(Ref<?, ?> ref) {
+    Lock lock = ref.lock();
+    long deadline = 0;
+    boolean parked = false;
+    boolean last = false;
+
+    for (;;) {
+      lock.lock();
+
+      /*
+       * The binding changes only under the write lock so it can't go away
+       * before its val() is read. On the last try val() fails the way the Ref
+       * wants.
+       */
+      Binding<?, ?> binding = ref.binding();
+      if (last || binding.isAvailable()) {
+        try {
+          return binding.val();
+        } catch (RuntimeException exc) {
+          lock.unlock();
+          throw exc;
+        }
+      }
+      lock.unlock();
+
+      if (!parked) {
+        deadline = System.nanoTime() + ref.damping();
+        parked = true;
+      }
+
+      try {
+        last = !ref.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      } catch (InterruptedException exc) {
+        /* Fail right away but let the caller know it was interrupted */
+        Thread.currentThread().interrupt();
+        last = true;
+      }
+    }
+  }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+/**
+ * Reports the failures nobody waits for. They go to the uncaught exception
+ * handler of the current thread so the application decides where they end up.
+ *
+ * @author Todor Boev
+ */
+final class Failures {
+  private Failures() {
+  }
+
+  /**
+   * @param exc
+   */
+  static void report(Throwable exc) {
+    Thread current = Thread.currentThread();
+    current.getUncaughtExceptionHandler().uncaughtException(current, exc);
+  }
+}
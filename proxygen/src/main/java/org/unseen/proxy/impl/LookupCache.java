@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers what a class loader found and what it did not find by class name.
+ * A class loader that delegates through several layers pays for an exception at
+ * every layer that misses. With this cache it pays once per name until the
+ * cache is cleared.
+ *
+ * @author Todor Boev
+ */
+final class LookupCache {
+  /**
+   * Stands for a name that was not found. Thrown again on every lookup so it
+   * does not fill in a stack trace.
+   */
+  private static final class Missing extends ClassNotFoundException {
+    private static final long serialVersionUID = 1L;
+
+    public Missing(String name) {
+      super(name);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  /** Holds a Class or a Missing per name */
+  private final ConcurrentMap<String, Object> results;
+
+  public LookupCache() {
+    this.results = new ConcurrentHashMap<String, Object>();
+  }
+
+  /**
+   * @param name
+   * @return the class found last time or null if name was never looked up.
+   * @throws ClassNotFoundException if name was not found last time.
+   */
+  public Class<?> get(String name) throws ClassNotFoundException {
+    Object res = results.get(name);
+    if (res instanceof Missing) {
+      throw (Missing) res;
+    }
+    return (Class<?>) res;
+  }
+
+  /**
+   * @param name
+   * @param found
+   * @return found
+   */
+  public Class<?> found(String name, Class<?> found) {
+    results.put(name, found);
+    return found;
+  }
+
+  /**
+   * @param name
+   * @return the exception to throw.
+   */
+  public ClassNotFoundException missing(String name) {
+    Missing res = new Missing(name);
+    results.put(name, res);
+    return res;
+  }
+
+  /**
+   * Forget everything. Called when the space behind the loader changes.
+   */
+  public void clear() {
+    results.clear();
+  }
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.objectweb.asm.Type;
+import org.unseen.proxy.gen.Cacheable;
+import org.unseen.proxy.gen.ProxyException;
+import org.unseen.proxy.ref.Binding;
+import org.unseen.proxy.ref.Ref;
+import org.unseen.proxy.ref.RefListenerAdapter;
+
+/**
+ * Remembers the results of the {@link Cacheable} methods of a proxy generated
+ * in {@link org.unseen.proxy.gen.ProxyMode#MEMOIZED} mode. A result is valid
+ * only for the {@link Binding} it was computed with so nothing stale can be
+ * returned after a transition of the Ref. On top of that the Ref drops the
+ * cache as soon as it is updated or starts unbinding so the results don't
+ * outlive the service.
+ *
+ * Hits take no lock. A miss calls the service reflectively while holding the
+ * Ref lock. All proxies of a class over the same Ref share one memo.
+ *
+ * Used by the generated code so it must stay public.
+ *
+ * @author Todor Boev
+ */
+public final class Memo extends RefListenerAdapter {
+  /**
+   * The cacheable methods of a proxy class. Shared by all proxies of the
+   * class.
+   */
+  public static final class Table {
+    private final Method[] methods;
+    private final int[] sizes;
+    private final long[] ttls;
+
+    private Table(Method[] methods) {
+      this.methods = methods;
+      this.sizes = new int[methods.length];
+      this.ttls = new long[methods.length];
+
+      for (int i = 0; i < methods.length; i++) {
+        Cacheable conf = methods[i].getAnnotation(Cacheable.class);
+        sizes[i] = conf.size();
+        ttls[i] = TimeUnit.MILLISECONDS.toNanos(conf.ttl());
+        /* The interface can be visible to the proxy but not to us */
+        methods[i].setAccessible(true);
+      }
+    }
+  }
+
+  private final Ref<?, ?> ref;
+  private final Table table;
+  private final Map<Key, Result>[] caches;
+
+  @SuppressWarnings("unchecked")
+  private Memo(Ref<?, ?> ref, Table table) {
+    this.ref = ref;
+    this.table = table;
+    this.caches = new Map[table.methods.length];
+    for (int i = 0; i < caches.length; i++) {
+      caches[i] = new ConcurrentHashMap<Key, Result>();
+    }
+  }
+
+  /**
+   * Called from the constructor of every proxy.
+   *
+   * @param ref
+   * @param table
+   * @return the memo of the proxy class over ref.
+   */
+  public static Memo of(Ref<?, ?> ref, Table table) {
+    Memo res = (Memo) ref.attachment(table);
+    if (res == null) {
+      Memo fresh = new Memo(ref, table);
+      res = (Memo) ref.attach(table, fresh);
+
+      /* Only the memo that made it to the Ref listens to it */
+      if (res == fresh) {
+        ref.addListener(fresh);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Called from the static initializer of a proxy class.
+   *
+   * @param proxyClass
+   * @param sigs name and descriptor of every cacheable method.
+   * @return
+   */
+  public static Table table(Class<?> proxyClass, String[] sigs) {
+    Method[] methods = new Method[sigs.length];
+
+    for (Class<?> iface : proxyClass.getInterfaces()) {
+      for (Method m : iface.getMethods()) {
+        String sig = m.getName() + Type.getMethodDescriptor(m);
+        for (int i = 0; i < sigs.length; i++) {
+          if (methods[i] == null && sigs[i].equals(sig)) {
+            methods[i] = m;
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < sigs.length; i++) {
+      if (methods[i] == null) {
+        throw new ProxyException(proxyClass + ": No method " + sigs[i]);
+      }
+    }
+    return new Table(methods);
+  }
+
+  /**
+   * @param method index of the method in the table.
+   * @param args
+   * @return the remembered result or the result of a fresh call.
+   * @throws Throwable whatever the service throws.
+   */
+  public Object call(int method, Object[] args) throws Throwable {
+    Key key = new Key(args);
+    Map<Key, Result> cache = caches[method];
+
+    Result res = cache.get(key);
+    if (res != null && res.isValid(ref.binding())) {
+      return res.val;
+    }
+
+    Lock lock = ref.lock();
+    lock.lock();
+    try {
+      Object val;
+      try {
+        val = table.methods[method].invoke(ref.binding().val(), args);
+      } catch (InvocationTargetException exc) {
+        throw exc.getCause();
+      }
+
+      /* Can't change while we hold the lock */
+      Binding<?, ?> binding = ref.binding();
+      if (binding.isAvailable()) {
+        if (cache.size() >= table.sizes[method]) {
+          evict(cache);
+        }
+
+        long ttl = table.ttls[method];
+        cache.put(key, new Result(binding, val, (ttl > 0) ? System.nanoTime() + ttl : 0));
+      }
+      return val;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void updated() {
+    clear();
+  }
+
+  @Override
+  public void unbinding() {
+    clear();
+  }
+
+  private void clear() {
+    for (Map<Key, Result> cache : caches) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * Drop some result to make room. Prefers expired ones.
+   */
+  private static void evict(Map<Key, Result> cache) {
+    long now = System.nanoTime();
+
+    boolean found = false;
+    for (Iterator<Result> iter = cache.values().iterator(); iter.hasNext();) {
+      if (iter.next().isExpired(now)) {
+        iter.remove();
+        found = true;
+      }
+    }
+
+    if (!found) {
+      Iterator<Result> iter = cache.values().iterator();
+      if (iter.hasNext()) {
+        iter.next();
+        iter.remove();
+      }
+    }
+  }
+
+  /**
+   * The arguments of a call.
+   */
+  private static final class Key {
+    private final Object[] args;
+    private final int hash;
+
+    public Key(Object[] args) {
+      this.args = args;
+      this.hash = Arrays.hashCode(args);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key && Arrays.equals(args, ((Key) obj).args);
+    }
+  }
+
+  /**
+   * A result and the binding it was computed with.
+   */
+  private static final class Result {
+    private final Binding<?, ?> binding;
+    private final Object val;
+    /** 0 if the result never expires */
+    private final long expires;
+
+    public Result(Binding<?, ?> binding, Object val, long expires) {
+      this.binding = binding;
+      this.val = val;
+      this.expires = expires;
+    }
+
+    public boolean isValid(Binding<?, ?> current) {
+      return binding == current && (expires == 0 || !isExpired(System.nanoTime()));
+    }
+
+    public boolean isExpired(long now) {
+      return expires != 0 && now - expires >= 0;
+    }
+  }
+}
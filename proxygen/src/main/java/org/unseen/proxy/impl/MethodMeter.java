@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the calls, the failures and the latencies of one method of a proxy
+ * class generated in {@link org.unseen.proxy.gen.ProxyMode#METERED} mode. All
+ * proxies of a class share it's meters. The counters are spread on per-thread
+ * stripes so the callers on different cores don't fight over a cache line.
+ *
+ * Used by the generated code so it must stay public.
+ *
+ * @author Todor Boev
+ */
+public final class MethodMeter {
+  /** Bucket i counts the calls that took less than 2^i nanoseconds */
+  public static final int BUCKETS = 64;
+
+  private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+  /** The error counters go after the histograms of all stripes */
+  private static final int ERRORS = STRIPES * BUCKETS;
+  /** Spread the error counters on different cache lines */
+  private static final int PAD = 8;
+
+  private static final Map<Class<?>, List<MethodMeter>> METERS =
+    new WeakHashMap<Class<?>, List<MethodMeter>>();
+
+  private final String method;
+  private final AtomicLongArray counts = new AtomicLongArray(ERRORS + STRIPES * PAD);
+
+  private MethodMeter(String method) {
+    this.method = method;
+  }
+
+  /**
+   * Called from the static initializer of a proxy class.
+   *
+   * @param proxyClass
+   * @param method name and descriptor of the metered method.
+   * @return
+   */
+  public static MethodMeter create(Class<?> proxyClass, String method) {
+    MethodMeter res = new MethodMeter(method);
+    synchronized (METERS) {
+      List<MethodMeter> all = METERS.get(proxyClass);
+      if (all == null) {
+        all = new ArrayList<MethodMeter>();
+        METERS.put(proxyClass, all);
+      }
+      all.add(res);
+    }
+    return res;
+  }
+
+  /**
+   * @param proxy
+   * @return the meters of all methods of proxy or an empty list if the proxy
+   *         is not metered.
+   */
+  public static List<MethodMeter> meters(Object proxy) {
+    return meters(proxy.getClass());
+  }
+
+  /**
+   * @param proxyClass
+   * @return the meters of all methods of proxyClass in the order the methods
+   *         were generated.
+   */
+  public static List<MethodMeter> meters(Class<?> proxyClass) {
+    synchronized (METERS) {
+      List<MethodMeter> all = METERS.get(proxyClass);
+      if (all == null) {
+        return Collections.emptyList();
+      }
+      return new ArrayList<MethodMeter>(all);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MethodMeter[" + method + " calls: " + calls() + " errors: " + errors() + "]";
+  }
+
+  /**
+   * @return the name and descriptor of the metered method.
+   */
+  public String method() {
+    return method;
+  }
+
+  /**
+   * @return how many calls completed normally or with an exception.
+   */
+  public long calls() {
+    long sum = 0;
+    for (int i = 0; i < ERRORS; i++) {
+      sum += counts.get(i);
+    }
+    return sum;
+  }
+
+  /**
+   * @return how many calls completed with an exception.
+   */
+  public long errors() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += counts.get(ERRORS + i * PAD);
+    }
+    return sum;
+  }
+
+  /**
+   * @return a histogram of the call latencies. Entry i counts the calls that
+   *         took at least 2^(i-1) and less than 2^i nanoseconds.
+   */
+  public long[] latencies() {
+    long[] res = new long[BUCKETS];
+    for (int s = 0; s < STRIPES; s++) {
+      for (int i = 0; i < BUCKETS; i++) {
+        res[i] += counts.get(s * BUCKETS + i);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @param start the {@link System#nanoTime()} at which the call started.
+   */
+  public void done(long start) {
+    record(start, stripe());
+  }
+
+  /**
+   * @param start the {@link System#nanoTime()} at which the call started.
+   */
+  public void failed(long start) {
+    int stripe = stripe();
+    record(start, stripe);
+    counts.incrementAndGet(ERRORS + stripe * PAD);
+  }
+
+  private void record(long start, int stripe) {
+    long nanos = System.nanoTime() - start;
+    int bucket = Math.min(BUCKETS - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+    counts.incrementAndGet(stripe * BUCKETS + bucket);
+  }
+
+  /**
+   * @return the stripe of the calling thread.
+   */
+  private static int stripe() {
+    long id = Thread.currentThread().getId();
+    int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return (hash >>> 16) & (STRIPES - 1);
+  }
+
+  /**
+   * @param cpus
+   * @return the smallest power of two that gives every core two stripes.
+   */
+  private static int stripes(int cpus) {
+    int res = 1;
+    while (res < cpus * 2) {
+      res <<= 1;
+    }
+    return res;
+  }
+}
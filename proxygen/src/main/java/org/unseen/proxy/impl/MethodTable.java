@@ -0,0 +1,272 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.unseen.proxy.gen.ProxyException;
+
+/**
+ * The methods a proxy must implement for a given interface, including the
+ * methods of all super interfaces. The super interfaces come first in a depth
+ * first left to right order. Every method appears only once. The tables are
+ * parsed from the bytecode of the interfaces once and shared by all proxy
+ * generators in the JVM. They are weakly keyed by the interface so they go
+ * away together with the bundle that defined it.
+ * 
+ * Every table also carries a digest of the bytecode it was built from so
+ * {@link ProxyClassCache} can tell when an interface has changed without
+ * reading it again.
+ * 
+ * @author Todor Boev
+ */
+public final class MethodTable {
+  private static final Map<Class<?>, MethodTable> CACHE = 
+    Collections.synchronizedMap(new WeakHashMap<Class<?>, MethodTable>());
+  
+  private static final AtomicLong HITS = new AtomicLong();
+  private static final AtomicLong BYTES_READ = new AtomicLong();
+  
+  /**
+   * A method found in the bytecode of the interface.
+   */
+  public static final class Method {
+    public final int access;
+    public final String name;
+    public final String desc;
+    public final String sig;
+    public final String[] excs;
+    
+    public Method(int access, String name, String desc, String sig, String[] excs) {
+      this.access = access;
+      this.name = name;
+      this.desc = desc;
+      this.sig = sig;
+      this.excs = excs;
+    }
+  }
+  
+  private final List<Method> methods;
+  private final String digest;
+  
+  private MethodTable(List<Method> methods, String digest) {
+    this.methods = Collections.unmodifiableList(methods);
+    this.digest = digest;
+  }
+  
+  /**
+   * @return
+   */
+  public List<Method> methods() {
+    return methods;
+  }
+  
+  /**
+   * @return a hex SHA-1 over the bytecode of the interface and all it's super
+   *         interfaces.
+   */
+  public String digest() {
+    return digest;
+  }
+  
+  /**
+   * @param type
+   * @return the method table of type.
+   */
+  public static MethodTable get(Class<?> type) {
+    MethodTable res = CACHE.get(type);
+    if (res != null) {
+      HITS.incrementAndGet();
+      return res;
+    }
+    
+    /* Two threads can build the same table. Both results are good. */
+    res = build(type);
+    CACHE.put(type, res);
+    return res;
+  }
+  
+  /**
+   * @return how many tables were taken from the cache.
+   */
+  public static long hits() {
+    return HITS.get();
+  }
+  
+  /**
+   * @return how many bytes of bytecode were read to build the tables.
+   */
+  public static long bytesRead() {
+    return BYTES_READ.get();
+  }
+  
+  private static MethodTable build(Class<?> type) {
+    Map<String, Method> methods = new LinkedHashMap<String, Method>();
+    MessageDigest md = sha1();
+    
+    /* The super interfaces come first */
+    for (Class<?> sup : type.getInterfaces()) {
+      MethodTable table = get(sup);
+      for (Method m : table.methods()) {
+        add(methods, m);
+      }
+      md.update(table.digest().getBytes());
+    }
+    
+    byte[] raw = read(type);
+    md.update(raw);
+    
+    new ClassReader(raw).accept(new MethodCollector(methods), 
+        ClassReader.SKIP_DEBUG + ClassReader.SKIP_CODE);
+    
+    return new MethodTable(new ArrayList<Method>(methods.values()), toHex(md.digest()));
+  }
+  
+  /**
+   * @return
+   */
+  static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException exc) {
+      throw new ProxyException(exc);
+    }
+  }
+  
+  /**
+   * @param raw
+   * @return
+   */
+  static String toHex(byte[] raw) {
+    StringBuilder res = new StringBuilder();
+    for (byte b : raw) {
+      res.append(Character.forDigit((b >> 4) & 0xF, 16));
+      res.append(Character.forDigit(b & 0xF, 16));
+    }
+    return res.toString();
+  }
+  
+  private static void add(Map<String, Method> methods, Method m) {
+    String key = m.name + m.desc;
+    if (!methods.containsKey(key)) {
+      methods.put(key, m);
+    }
+  }
+  
+  /**
+   * @param type
+   * @return
+   */
+  private static byte[] read(Class<?> type) {
+    String path = type.getName().replace('.', '/') + ".class";
+    
+    ClassLoader loader = type.getClassLoader();
+    InputStream in = (loader != null) 
+      ? loader.getResourceAsStream(path) 
+      : ClassLoader.getSystemResourceAsStream(path);
+      
+    if (in == null) {
+      throw new ProxyException("Can't find the bytecode of " + type);
+    }
+    
+    try {
+      try {
+        byte[] buff = new byte[1024];
+        int len = 0;
+        for (int read; (read = in.read(buff, len, buff.length - len)) > 0;) {
+          len += read;
+          if (len == buff.length) {
+            byte[] bigger = new byte[buff.length * 2];
+            System.arraycopy(buff, 0, bigger, 0, len);
+            buff = bigger;
+          }
+        }
+        
+        BYTES_READ.addAndGet(len);
+        
+        byte[] res = new byte[len];
+        System.arraycopy(buff, 0, res, 0, len);
+        return res;
+      } finally {
+        in.close();
+      }
+    } catch (IOException exc) {
+      throw new ProxyException(exc);
+    }
+  }
+  
+  /**
+   * Collects the instance methods declared directly by a class file.
+   */
+  private static class MethodCollector implements ClassVisitor {
+    private final Map<String, Method> methods;
+    
+    public MethodCollector(Map<String, Method> methods) {
+      this.methods = methods;
+    }
+    
+    public void visit(int ver, int acc, String name, String sig, String superN, String[] ifaces) {
+    }
+
+    public void visitSource(String source, String debug) {
+    }
+
+    public void visitOuterClass(String owner, String name, String desc) {
+    }
+
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+      return null;
+    }
+
+    public void visitAttribute(Attribute attr) {
+    }
+
+    public void visitInnerClass(String name, String outerName, String innerName, int access) {
+    }
+
+    public FieldVisitor visitField(int access, String name, String desc, String sig, Object val) {
+      return null;
+    }
+
+    public MethodVisitor visitMethod(int access, String name, String desc, String sig, String[] excs) {
+      /* Skip the static initializer of interfaces with constants */
+      if ((access & Opcodes.ACC_STATIC) == 0) {
+        add(methods, new Method(access, name, desc, sig, excs));
+      }
+      return null;
+    }
+    
+    public void visitEnd() {
+    }
+  }
+}
@@ -16,17 +16,22 @@
 package org.unseen.proxy.impl;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Lock;
 
-import java.io.IOException;
-import java.io.InputStream;
-
 import org.objectweb.asm.*;
+import org.unseen.proxy.gen.Async;
+import org.unseen.proxy.gen.Cacheable;
 import org.unseen.proxy.gen.Proxy;
 import org.unseen.proxy.gen.ProxyException;
+import org.unseen.proxy.gen.ProxyMode;
+import org.unseen.proxy.ref.Binding;
 import org.unseen.proxy.ref.Ref;
 
 
@@ -35,6 +40,18 @@ import org.unseen.proxy.ref.Ref;
  * @version $Revision$
  */
 public class ProxyClassBuilder implements Opcodes {
+  /** Must change every time the generated code changes */
+  public static final int VERSION = 10;
+  
+  /**
+   * Class files of version 50 and later carry stack map frames which are
+   * checked by the fast type checking verifier. The frames of the delegation
+   * code are simple enough to write by hand so we never ask ASM to compute
+   * them. On older JVMs we emit version 49 class files without frames.
+   */
+  static final int CLASS_VERSION = 
+    Float.parseFloat(System.getProperty("java.class.version", "49")) >= 50 ? V1_6 : V1_5;
+  
   private static final String PROXY_IFACE;
   private static final String PROXY_CONTROL;
   private static final String PROXY_CONTROL_DESC;
@@ -42,8 +59,80 @@ public class ProxyClassBuilder implements Opcodes {
   private static final String REF_IFACE;
   private static final String REF_LOCK;
   private static final String REF_LOCK_DESC;
-  private static final String REF_VAL;
-  private static final String REF_VAL_DESC;
+  private static final String REF_BINDING;
+  private static final String REF_BINDING_DESC;
+  
+  private static final String BINDING_CLASS;
+  private static final String BINDING_VAL;
+  private static final String BINDING_VAL_DESC;
+  
+  private static final String SITE_CLASS;
+  private static final String SITE_DESC;
+  private static final String SITE_FIELD = "$site";
+  private static final String SITE_OF;
+  private static final String SITE_OF_DESC;
+  private static final String SITE_TARGET;
+  private static final String SITE_TARGET_DESC;
+  
+  private static final String DAMPER_CLASS;
+  private static final String DAMPER_LOCK;
+  private static final String DAMPER_LOCK_DESC;
+  
+  private static final String METER_CLASS;
+  private static final String METER_DESC;
+  private static final String METER_FIELD = "$meter";
+  private static final String METER_CREATE;
+  private static final String METER_CREATE_DESC;
+  private static final String METER_DONE;
+  private static final String METER_FAILED;
+  private static final String METER_DONE_DESC = "(J)V";
+  /** Appended to the name of the unmetered twin of every metered method */
+  private static final String BODY_SUFFIX = "$body";
+  
+  private static final String MEMO_CLASS;
+  private static final String MEMO_DESC;
+  private static final String MEMO_FIELD = "$memo";
+  private static final String MEMO_OF;
+  private static final String MEMO_OF_DESC;
+  private static final String MEMO_CALL;
+  private static final String MEMO_CALL_DESC;
+  private static final String MEMO_TABLE_DESC;
+  private static final String MEMO_TABLE_FIELD = "$memos";
+  private static final String MEMO_TABLE;
+  private static final String MEMO_TABLE_INIT_DESC;
+  
+  private static final String ASYNC_CLASS;
+  private static final String ASYNC_DESC;
+  private static final String ASYNC_FIELD = "$async";
+  private static final String ASYNC_INIT_DESC;
+  private static final String ASYNC_SUBMIT;
+  private static final String ASYNC_SUBMIT_DESC;
+  private static final String ASYNC_TABLE_DESC;
+  private static final String ASYNC_TABLE_FIELD = "$asyncs";
+  private static final String ASYNC_TABLE;
+  private static final String ASYNC_TABLE_INIT_DESC;
+  private static final String EXECUTOR_DESC;
+  
+  private static final String BATCH_CLASS;
+  private static final String BATCH_DESC;
+  private static final String BATCH_FIELD = "$batch";
+  private static final String BATCH_OF;
+  private static final String BATCH_OF_DESC;
+  private static final String BATCH_POST;
+  private static final String BATCH_POST_DESC;
+  private static final String BATCH_TABLE_DESC;
+  private static final String BATCH_TABLE_FIELD = "$batches";
+  private static final String BATCH_TABLE;
+  private static final String BATCH_TABLE_INIT_DESC;
+  
+  /**
+   * The static field that holds the instantiator of the proxy class so they
+   * live and die together and the static method that reads it.
+   */
+  public static final String INSTANTIATOR = "$instantiator";
+  private static final String INSTANTIATOR_SUFFIX = "$Instantiator";
+  private static final String INSTANTIATOR_IFACE;
+  private static final String INSTANTIATOR_DESC;
   
   static {
     try {
@@ -59,37 +148,124 @@ public class ProxyClassBuilder implements Opcodes {
       REF_LOCK = Ref.class.getMethod("lock", new Class[0]).getName();
       REF_LOCK_DESC = "()L" + toInternalName(Lock.class) + ";";
       
-      REF_VAL = Ref.class.getMethod("val", new Class[0]).getName();
-      REF_VAL_DESC = "()L" + toInternalName(Object.class) + ";";
+      REF_BINDING = Ref.class.getMethod("binding", new Class[0]).getName();
+      REF_BINDING_DESC = "()L" + toInternalName(Binding.class) + ";";
+      
+      /* Init the Binding constants */
+      BINDING_CLASS = toInternalName(Binding.class);
+      
+      BINDING_VAL = Binding.class.getMethod("val", new Class[0]).getName();
+      BINDING_VAL_DESC = "()L" + toInternalName(Object.class) + ";";
+      
+      /* Init the CallSite constants */
+      SITE_CLASS = toInternalName(CallSite.class);
+      SITE_DESC = "L" + SITE_CLASS + ";";
+      SITE_OF = CallSite.class.getMethod("of", new Class[] {Ref.class}).getName();
+      SITE_OF_DESC = "(L" + toInternalName(Ref.class) + ";)" + SITE_DESC;
+      
+      SITE_TARGET = CallSite.class.getMethod("target", new Class[0]).getName();
+      SITE_TARGET_DESC = "()L" + toInternalName(Object.class) + ";";
+      
+      /* Init the Damper constants */
+      DAMPER_CLASS = toInternalName(Damper.class);
+      DAMPER_LOCK = Damper.class.getMethod("lock", new Class[] {Ref.class}).getName();
+      DAMPER_LOCK_DESC = "(L" + toInternalName(Ref.class) + ";)L" + toInternalName(Object.class) + ";";
+      
+      /* Init the MethodMeter constants */
+      METER_CLASS = toInternalName(MethodMeter.class);
+      METER_DESC = "L" + METER_CLASS + ";";
+      METER_CREATE = MethodMeter.class.getMethod("create", new Class[] {Class.class, String.class})
+        .getName();
+      METER_CREATE_DESC = "(L" + toInternalName(Class.class) + ";L" + toInternalName(String.class)
+        + ";)" + METER_DESC;
+      METER_DONE = MethodMeter.class.getMethod("done", new Class[] {long.class}).getName();
+      METER_FAILED = MethodMeter.class.getMethod("failed", new Class[] {long.class}).getName();
+      
+      /* Init the Memo constants */
+      MEMO_CLASS = toInternalName(Memo.class);
+      MEMO_DESC = "L" + MEMO_CLASS + ";";
+      MEMO_TABLE_DESC = "L" + toInternalName(Memo.Table.class) + ";";
+      MEMO_OF = Memo.class.getMethod("of", new Class[] {Ref.class, Memo.Table.class}).getName();
+      MEMO_OF_DESC = "(L" + toInternalName(Ref.class) + ";" + MEMO_TABLE_DESC + ")" + MEMO_DESC;
+      MEMO_CALL = Memo.class.getMethod("call", new Class[] {int.class, Object[].class}).getName();
+      MEMO_CALL_DESC = "(I[L" + toInternalName(Object.class) + ";)L" + toInternalName(Object.class)
+        + ";";
+      MEMO_TABLE = Memo.class.getMethod("table", new Class[] {Class.class, String[].class})
+        .getName();
+      MEMO_TABLE_INIT_DESC = "(L" + toInternalName(Class.class) + ";[L"
+        + toInternalName(String.class) + ";)" + MEMO_TABLE_DESC;
+      
+      /* Init the AsyncSite constants */
+      ASYNC_CLASS = toInternalName(AsyncSite.class);
+      ASYNC_DESC = "L" + ASYNC_CLASS + ";";
+      ASYNC_TABLE_DESC = "L" + toInternalName(AsyncSite.Table.class) + ";";
+      EXECUTOR_DESC = "L" + toInternalName(Executor.class) + ";";
+      ASYNC_INIT_DESC = "(L" + toInternalName(Ref.class) + ";" + ASYNC_TABLE_DESC + EXECUTOR_DESC
+        + ")V";
+      ASYNC_SUBMIT = AsyncSite.class.getMethod("submit", new Class[] {int.class, Object[].class})
+        .getName();
+      ASYNC_SUBMIT_DESC = "(I[L" + toInternalName(Object.class) + ";)L"
+        + toInternalName(Future.class) + ";";
+      ASYNC_TABLE = AsyncSite.class.getMethod("table", new Class[] {Class.class, String[].class})
+        .getName();
+      ASYNC_TABLE_INIT_DESC = "(L" + toInternalName(Class.class) + ";[L"
+        + toInternalName(String.class) + ";)" + ASYNC_TABLE_DESC;
+      
+      /* Init the Batcher constants */
+      BATCH_CLASS = toInternalName(Batcher.class);
+      BATCH_DESC = "L" + BATCH_CLASS + ";";
+      BATCH_TABLE_DESC = "L" + toInternalName(Batcher.Table.class) + ";";
+      BATCH_OF = Batcher.class.getMethod("of", new Class[] {Ref.class, Batcher.Table.class})
+        .getName();
+      BATCH_OF_DESC = "(L" + toInternalName(Ref.class) + ";" + BATCH_TABLE_DESC + ")" + BATCH_DESC;
+      BATCH_POST = Batcher.class.getMethod("post", new Class[] {int.class, Object[].class})
+        .getName();
+      BATCH_POST_DESC = "(I[L" + toInternalName(Object.class) + ";)V";
+      BATCH_TABLE = Batcher.class.getMethod("table", new Class[] {Class.class, String[].class})
+        .getName();
+      BATCH_TABLE_INIT_DESC = "(L" + toInternalName(Class.class) + ";[L"
+        + toInternalName(String.class) + ";)" + BATCH_TABLE_DESC;
+      
+      /* Init the ProxyInstantiator constants */
+      INSTANTIATOR_IFACE = toInternalName(ProxyInstantiator.class);
+      INSTANTIATOR_DESC = "L" + INSTANTIATOR_IFACE + ";";
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
   
   private static final String FIELD_DESC = "L" + REF_IFACE + ";";
-  
+  private static final String REF_FIELD = "$ref";
+  private static final String LOCK_FIELD = "$lock";
+  private static final String LOCK_DESC = "L" + toInternalName(Lock.class) + ";";
+  
+  /** The wrapper class of every primitive type */
+  private static final Map<Type, String> WRAPPERS = new HashMap<Type, String>();
+  
+  static {
+    WRAPPERS.put(Type.BOOLEAN_TYPE, "java/lang/Boolean");
+    WRAPPERS.put(Type.BYTE_TYPE, "java/lang/Byte");
+    WRAPPERS.put(Type.CHAR_TYPE, "java/lang/Character");
+    WRAPPERS.put(Type.SHORT_TYPE, "java/lang/Short");
+    WRAPPERS.put(Type.INT_TYPE, "java/lang/Integer");
+    WRAPPERS.put(Type.LONG_TYPE, "java/lang/Long");
+    WRAPPERS.put(Type.FLOAT_TYPE, "java/lang/Float");
+    WRAPPERS.put(Type.DOUBLE_TYPE, "java/lang/Double");
+  }
+  
   private final Set<String> visitedMethods;
   
   /**
    * 
    */
-  private class MixinGenerator implements ClassVisitor {
+  private class MixinGenerator {
     private final String ifName;
-    private final String fieldName;
+    /** The cacheable methods by name and descriptor */
+    private final Set<String> cacheable;
     
     public MixinGenerator(String ifName) {
       this.ifName = toInternalName(ifName);
-      this.fieldName = toIdentifier(ifName);
-    }
-    
-    /**
-     * @param mv
-     * @param fieldNo
-     */
-    public void generateConstructorCode(MethodVisitor mv, int fieldNo) {
-      mv.visitVarInsn(ALOAD, 0);
-      mv.visitVarInsn(ALOAD, fieldNo);
-      mv.visitFieldInsn(PUTFIELD, implName, fieldName, FIELD_DESC);
+      this.cacheable = new HashSet<String>();
     }
     
     /**
@@ -100,7 +276,7 @@ public class ProxyClassBuilder implements Opcodes {
       mv.visitCode();
       
       mv.visitVarInsn(ALOAD, 0);
-      mv.visitFieldInsn(GETFIELD, implName, fieldName, FIELD_DESC);
+      mv.visitFieldInsn(GETFIELD, implName, REF_FIELD, FIELD_DESC);
       mv.visitInsn(ARETURN);
       
       mv.visitMaxs(0, 0);
@@ -130,6 +306,52 @@ public class ProxyClassBuilder implements Opcodes {
       MethodVisitor mv = cv.visitMethod(ACC_PUBLIC, "equals", "(Ljava/lang/Object;)Z", null, null);
       mv.visitCode();
       
+      if (mode == ProxyMode.OPTIMISTIC || mode == ProxyMode.DIRECT) {
+        generateOptimisticEqualsCode(mv);
+      } else {
+        generateLockedEqualsCode(mv);
+      }
+      
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    }
+    
+    /**
+     * @param mv
+     */
+    private void generateOptimisticEqualsCode(MethodVisitor mv) {
+      /* Dereference this */
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitFieldInsn(GETFIELD, implName, REF_FIELD, FIELD_DESC);
+      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_BINDING, REF_BINDING_DESC);
+      mv.visitMethodInsn(INVOKEVIRTUAL, BINDING_CLASS, BINDING_VAL, BINDING_VAL_DESC);
+      mv.visitVarInsn(ASTORE, 2);
+      
+      /* Dereference the other side if it is a proxy too */
+      mv.visitVarInsn(ALOAD, 1);
+      mv.visitTypeInsn(INSTANCEOF, PROXY_IFACE);
+      Label l0 = new Label();
+      mv.visitJumpInsn(IFEQ, l0);
+      mv.visitVarInsn(ALOAD, 1);
+      mv.visitTypeInsn(CHECKCAST, PROXY_IFACE);
+      mv.visitMethodInsn(INVOKEINTERFACE, PROXY_IFACE, PROXY_CONTROL, PROXY_CONTROL_DESC);
+      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_BINDING, REF_BINDING_DESC);
+      mv.visitMethodInsn(INVOKEVIRTUAL, BINDING_CLASS, BINDING_VAL, BINDING_VAL_DESC);
+      mv.visitVarInsn(ASTORE, 1);
+      
+      /* Compare */
+      mv.visitLabel(l0);
+      frame(mv, new Object[] {implName, OBJECT, OBJECT});
+      mv.visitVarInsn(ALOAD, 2);
+      mv.visitVarInsn(ALOAD, 1);
+      mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "equals", "(Ljava/lang/Object;)Z");
+      mv.visitInsn(IRETURN);
+    }
+    
+    /**
+     * @param mv
+     */
+    private void generateLockedEqualsCode(MethodVisitor mv) {
       Label l0 = new Label();
       Label l1 = new Label();
       mv.visitTryCatchBlock(l0, l1, l1, null);
@@ -139,28 +361,28 @@ public class ProxyClassBuilder implements Opcodes {
       mv.visitInsn(ACONST_NULL);
       mv.visitVarInsn(ASTORE, 2);
       mv.visitVarInsn(ALOAD, 0);
-      mv.visitFieldInsn(GETFIELD, implName, fieldName, FIELD_DESC);
-      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_LOCK, REF_LOCK_DESC);
+      mv.visitFieldInsn(GETFIELD, implName, LOCK_FIELD, LOCK_DESC);
       mv.visitMethodInsn(INVOKEINTERFACE, "java/util/concurrent/locks/Lock", "lock", "()V");
       mv.visitLabel(l0);
       mv.visitVarInsn(ALOAD, 0);
-      mv.visitFieldInsn(GETFIELD, implName, fieldName, FIELD_DESC);
-      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_VAL, REF_VAL_DESC);
+      mv.visitFieldInsn(GETFIELD, implName, REF_FIELD, FIELD_DESC);
+      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_BINDING, REF_BINDING_DESC);
+      mv.visitMethodInsn(INVOKEVIRTUAL, BINDING_CLASS, BINDING_VAL, BINDING_VAL_DESC);
       mv.visitVarInsn(ASTORE, 2);
       Label l4 = new Label();
       mv.visitJumpInsn(GOTO, l4);
       mv.visitLabel(l1);
+      frame(mv, new Object[] {implName, OBJECT, OBJECT}, THROWABLE);
       mv.visitVarInsn(ASTORE, 3);
       mv.visitVarInsn(ALOAD, 0);
-      mv.visitFieldInsn(GETFIELD, implName, fieldName, FIELD_DESC);
-      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_LOCK, REF_LOCK_DESC);
+      mv.visitFieldInsn(GETFIELD, implName, LOCK_FIELD, LOCK_DESC);
       mv.visitMethodInsn(INVOKEINTERFACE, "java/util/concurrent/locks/Lock", "unlock", "()V");
       mv.visitVarInsn(ALOAD, 3);
       mv.visitInsn(ATHROW);
       mv.visitLabel(l4);
+      frame(mv, new Object[] {implName, OBJECT, OBJECT});
       mv.visitVarInsn(ALOAD, 0);
-      mv.visitFieldInsn(GETFIELD, implName, fieldName, FIELD_DESC);
-      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_LOCK, REF_LOCK_DESC);
+      mv.visitFieldInsn(GETFIELD, implName, LOCK_FIELD, LOCK_DESC);
       mv.visitMethodInsn(INVOKEINTERFACE, "java/util/concurrent/locks/Lock", "unlock", "()V");
       mv.visitVarInsn(ALOAD, 1);
       mv.visitTypeInsn(INSTANCEOF, PROXY_IFACE);
@@ -175,11 +397,13 @@ public class ProxyClassBuilder implements Opcodes {
       mv.visitMethodInsn(INVOKEINTERFACE, "java/util/concurrent/locks/Lock", "lock", "()V");
       mv.visitLabel(l2);
       mv.visitVarInsn(ALOAD, 3);
-      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_VAL, REF_VAL_DESC);
+      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_BINDING, REF_BINDING_DESC);
+      mv.visitMethodInsn(INVOKEVIRTUAL, BINDING_CLASS, BINDING_VAL, BINDING_VAL_DESC);
       mv.visitVarInsn(ASTORE, 1);
       Label l6 = new Label();
       mv.visitJumpInsn(GOTO, l6);
       mv.visitLabel(l3);
+      frame(mv, new Object[] {implName, OBJECT, OBJECT, REF_IFACE}, THROWABLE);
       mv.visitVarInsn(ASTORE, 4);
       mv.visitVarInsn(ALOAD, 3);
       mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_LOCK, REF_LOCK_DESC);
@@ -187,69 +411,43 @@ public class ProxyClassBuilder implements Opcodes {
       mv.visitVarInsn(ALOAD, 4);
       mv.visitInsn(ATHROW);
       mv.visitLabel(l6);
+      frame(mv, new Object[] {implName, OBJECT, OBJECT, REF_IFACE});
       mv.visitVarInsn(ALOAD, 3);
       mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_LOCK, REF_LOCK_DESC);
       mv.visitMethodInsn(INVOKEINTERFACE, "java/util/concurrent/locks/Lock", "unlock", "()V");
       mv.visitLabel(l5);
+      frame(mv, new Object[] {implName, OBJECT, OBJECT});
       mv.visitVarInsn(ALOAD, 2);
       mv.visitVarInsn(ALOAD, 1);
       mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "equals", "(Ljava/lang/Object;)Z");
       mv.visitInsn(IRETURN);
-      
-      mv.visitMaxs(0, 0);
-      mv.visitEnd();
     }
     
     /**
      *  
      */
     public void generateMixin() {
-      /* Generate the field */
-      cv.visitField(ACC_PRIVATE + ACC_FINAL, fieldName, FIELD_DESC, null, null).visitEnd();
+      if (mode == ProxyMode.ASYNC && !getType(ifName).isAnnotationPresent(Async.class)) {
+        throw new ProxyException(ifName + ": Not marked @" + Async.class.getSimpleName());
+      }
+      
+      if (mode == ProxyMode.MEMOIZED) {
+        for (java.lang.reflect.Method m : getType(ifName).getMethods()) {
+          if (m.isAnnotationPresent(Cacheable.class) && m.getReturnType() != void.class) {
+            cacheable.add(m.getName() + Type.getMethodDescriptor(m));
+          }
+        }
+      }
       
-      /* Visit the interface */
-      getReader(ifName).accept(this, null, ClassReader.SKIP_DEBUG);
-    }
-
-    public void visit(int ver, int acc, String name, String sig, String superN, String[] ifaces) {
       /*
-       * Visit the super interfaces before the main interface. This yields a depth
-       * first left to right traversal of the interface acyclic directed graph
+       * The table lists the methods of the super interfaces before the methods
+       * of the main interface. This yields a depth first left to right
+       * traversal of the interface acyclic directed graph
        */
-      for (int i = 0; i < ifaces.length; i++) {
-        getReader(ifaces[i]).accept(this, null, ClassReader.SKIP_DEBUG);
+      for (MethodTable.Method m : MethodTable.get(getType(ifName)).methods()) {
+        generateMethod(m.access, m.name, m.desc, m.sig, m.excs);
       }
     }
-
-    public void visitSource(String source, String debug) {
-      return;
-    }
-
-    public void visitOuterClass(String owner, String name, String desc) {
-      return;
-    }
-
-    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-      return null;
-    }
-
-    public void visitAttribute(Attribute attr) {
-    }
-
-    public void visitInnerClass(String name, String outerName, String innerName, int access) {
-    }
-
-    public FieldVisitor visitField(int access, String name, String desc, String sig, Object val) {
-      return null;
-    }
-
-    public MethodVisitor visitMethod(int access, String name, String desc, String sig, String[] excs) {
-      generateMethod(access, name, desc, sig, excs);
-      return null;
-    }
-    
-    public void visitEnd() {
-    }
     
     private void generateMethod(int access, String name, String desc, String sig, String[] excs) {
       String methodSig = name + desc;
@@ -260,66 +458,334 @@ public class ProxyClassBuilder implements Opcodes {
       MethodVisitor mv = cv.visitMethod(access & ~ACC_ABSTRACT, name, desc, sig, excs);
       mv.visitCode();
       
+      if (mode == ProxyMode.ASYNC) {
+        generateAsyncMethodCode(mv, name, desc);
+      } else if (cacheable.contains(methodSig)) {
+        generateMemoizedMethodCode(mv, name, desc);
+      } else if (mode == ProxyMode.BATCHED && Type.getReturnType(desc) == Type.VOID_TYPE) {
+        generateBatchedMethodCode(mv, name, desc);
+      } else if (mode == ProxyMode.METERED) {
+        generateMeteredMethodCode(mv, name, desc);
+      } else if (mode == ProxyMode.DIRECT) {
+        generateDirectMethodCode(mv, name, desc);
+      } else if (mode == ProxyMode.OPTIMISTIC) {
+        generateOptimisticMethodCode(mv, name, desc);
+      } else {
+        generateLockedMethodCode(mv, name, desc, mode == ProxyMode.DAMPED);
+      }
+      
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+      
+      visitedMethods.add(methodSig);
+    }
+    
+    /**
+     * Pass the call with it's boxed arguments to the memo and unbox the result.
+     * 
+     * @param mv
+     * @param name
+     * @param desc
+     */
+    private void generateMemoizedMethodCode(MethodVisitor mv, String name, String desc) {
+      int no = memoized.size();
+      memoized.add(name + desc);
+      
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitFieldInsn(GETFIELD, implName, MEMO_FIELD, MEMO_DESC);
+      mv.visitLdcInsn(Integer.valueOf(no));
+      boxArguments(mv, desc);
+      mv.visitMethodInsn(INVOKEVIRTUAL, MEMO_CLASS, MEMO_CALL, MEMO_CALL_DESC);
+      
+      Type ret = Type.getReturnType(desc);
+      unbox(mv, ret);
+      mv.visitInsn(ret.getOpcode(IRETURN));
+    }
+    
+    /**
+     * Submit the call with it's boxed arguments to the async site and return
+     * the future.
+     * 
+     * @param mv
+     * @param name
+     * @param desc
+     */
+    private void generateAsyncMethodCode(MethodVisitor mv, String name, String desc) {
+      int no = asyncs.size();
+      asyncs.add(name + desc.substring(0, desc.indexOf(')') + 1));
+      
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitFieldInsn(GETFIELD, implName, ASYNC_FIELD, ASYNC_DESC);
+      mv.visitLdcInsn(Integer.valueOf(no));
+      boxArguments(mv, desc);
+      mv.visitMethodInsn(INVOKEVIRTUAL, ASYNC_CLASS, ASYNC_SUBMIT, ASYNC_SUBMIT_DESC);
+      
+      Type ret = Type.getReturnType(desc);
+      mv.visitTypeInsn(CHECKCAST, ret.getInternalName());
+      mv.visitInsn(ARETURN);
+    }
+    
+    /**
+     * Queue the call with it's boxed arguments and return right away.
+     * 
+     * @param mv
+     * @param name
+     * @param desc
+     */
+    private void generateBatchedMethodCode(MethodVisitor mv, String name, String desc) {
+      int no = batched.size();
+      batched.add(name + desc);
+      
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitFieldInsn(GETFIELD, implName, BATCH_FIELD, BATCH_DESC);
+      mv.visitLdcInsn(Integer.valueOf(no));
+      boxArguments(mv, desc);
+      mv.visitMethodInsn(INVOKEVIRTUAL, BATCH_CLASS, BATCH_POST, BATCH_POST_DESC);
+      mv.visitInsn(RETURN);
+    }
+    
+    /**
+     * Push an array that holds the boxed arguments of the method.
+     * 
+     * @param mv
+     * @param desc
+     */
+    private void boxArguments(MethodVisitor mv, String desc) {
+      Type[] args = Type.getArgumentTypes(desc);
+      mv.visitLdcInsn(Integer.valueOf(args.length));
+      mv.visitTypeInsn(ANEWARRAY, OBJECT);
+      for (int i = 0, slot = 1; i < args.length; slot += args[i].getSize(), i++) {
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn(Integer.valueOf(i));
+        mv.visitVarInsn(args[i].getOpcode(ILOAD), slot);
+        box(mv, args[i]);
+        mv.visitInsn(AASTORE);
+      }
+    }
+    
+    /**
+     * Time a call to an unmetered twin of this method that delegates while
+     * holding the Ref lock. The twin is private so the JIT inlines it.
+     * 
+     * @param mv
+     * @param name
+     * @param desc
+     */
+    private void generateMeteredMethodCode(MethodVisitor mv, String name, String desc) {
+      String meter = METER_FIELD + meters.size();
+      meters.add(name + desc);
+      cv.visitField(ACC_PRIVATE + ACC_STATIC + ACC_FINAL + ACC_SYNTHETIC, meter, METER_DESC, null,
+          null).visitEnd();
+      
       Label l0 = new Label();
       Label l1 = new Label();
-      mv.visitTryCatchBlock(l0, l1, l1, null);
+      Label l2 = new Label();
+      mv.visitTryCatchBlock(l0, l1, l2, null);
       
-      /* Lock */
-      mv.visitVarInsn(ALOAD, 0);
-      mv.visitFieldInsn(GETFIELD, implName, fieldName, FIELD_DESC);
-      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_LOCK, REF_LOCK_DESC);
-      mv.visitMethodInsn(INVOKEINTERFACE, "java/util/concurrent/locks/Lock", "lock", "()V");
+      Type[] args = Type.getArgumentTypes(desc);
+      int slot = 1;
+      for (Type arg : args) {
+        slot += arg.getSize();
+      }
+      
+      /* Start the timer */
+      mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J");
+      mv.visitVarInsn(LSTORE, slot);
       mv.visitLabel(l0);
       
+      /* Invoke the twin */
+      mv.visitVarInsn(ALOAD, 0);
+      for (int i = 0, arg = 1; i < args.length; arg += args[i].getSize(), i++) {
+        mv.visitVarInsn(args[i].getOpcode(ILOAD), arg);
+      }
+      mv.visitMethodInsn(INVOKESPECIAL, implName, name + BODY_SUFFIX, desc);
+      mv.visitLabel(l1);
+      
+      /* Record and return */
+      mv.visitFieldInsn(GETSTATIC, implName, meter, METER_DESC);
+      mv.visitVarInsn(LLOAD, slot);
+      mv.visitMethodInsn(INVOKEVIRTUAL, METER_CLASS, METER_DONE, METER_DONE_DESC);
+      mv.visitInsn(Type.getReturnType(desc).getOpcode(IRETURN));
+      
+      /* Record and re-throw */
+      Object[] argLocals = locals(args);
+      Object[] locals = new Object[argLocals.length + 1];
+      System.arraycopy(argLocals, 0, locals, 0, argLocals.length);
+      locals[argLocals.length] = LONG;
+      
+      mv.visitLabel(l2);
+      frame(mv, locals, THROWABLE);
+      mv.visitVarInsn(ASTORE, slot + 2);
+      mv.visitFieldInsn(GETSTATIC, implName, meter, METER_DESC);
+      mv.visitVarInsn(LLOAD, slot);
+      mv.visitMethodInsn(INVOKEVIRTUAL, METER_CLASS, METER_FAILED, METER_DONE_DESC);
+      mv.visitVarInsn(ALOAD, slot + 2);
+      mv.visitInsn(ATHROW);
+      
+      /* Generate the twin */
+      MethodVisitor body = cv.visitMethod(ACC_PRIVATE + ACC_SYNTHETIC, name + BODY_SUFFIX, desc,
+          null, null);
+      body.visitCode();
+      generateLockedMethodCode(body, name, desc, false);
+      body.visitMaxs(0, 0);
+      body.visitEnd();
+    }
+    
+    /**
+     * Delegate to the target of the call site. The target is retargeted by the
+     * Ref so we never touch the Ref on the fast path.
+     * 
+     * @param mv
+     * @param name
+     * @param desc
+     */
+    private void generateDirectMethodCode(MethodVisitor mv, String name, String desc) {
       /* Dereference */
       mv.visitVarInsn(ALOAD, 0);
-      mv.visitFieldInsn(GETFIELD, implName, fieldName, FIELD_DESC);
-      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_VAL, REF_VAL_DESC);
+      mv.visitFieldInsn(GETFIELD, implName, SITE_FIELD, SITE_DESC);
+      mv.visitMethodInsn(INVOKEVIRTUAL, SITE_CLASS, SITE_TARGET, SITE_TARGET_DESC);
       mv.visitTypeInsn(CHECKCAST, ifName);
       
       /* Invoke */
       Type[] args = Type.getArgumentTypes(desc);
-      for (int i = 0; i < args.length; i++) {
-        mv.visitVarInsn(args[i].getOpcode(ILOAD), i + 1);
+      for (int i = 0, slot = 1; i < args.length; slot += args[i].getSize(), i++) {
+        mv.visitVarInsn(args[i].getOpcode(ILOAD), slot);
+      }
+      mv.visitMethodInsn(INVOKEINTERFACE, ifName, name, desc);
+      mv.visitInsn(Type.getReturnType(desc).getOpcode(IRETURN));
+    }
+    
+    /**
+     * Delegate through the current binding snapshot. No lock is taken and
+     * nothing is written to shared memory.
+     * 
+     * @param mv
+     * @param name
+     * @param desc
+     */
+    private void generateOptimisticMethodCode(MethodVisitor mv, String name, String desc) {
+      /* Dereference */
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitFieldInsn(GETFIELD, implName, REF_FIELD, FIELD_DESC);
+      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_BINDING, REF_BINDING_DESC);
+      mv.visitMethodInsn(INVOKEVIRTUAL, BINDING_CLASS, BINDING_VAL, BINDING_VAL_DESC);
+      mv.visitTypeInsn(CHECKCAST, ifName);
+      
+      /* Invoke */
+      Type[] args = Type.getArgumentTypes(desc);
+      for (int i = 0, slot = 1; i < args.length; slot += args[i].getSize(), i++) {
+        mv.visitVarInsn(args[i].getOpcode(ILOAD), slot);
+      }
+      mv.visitMethodInsn(INVOKEINTERFACE, ifName, name, desc);
+      mv.visitInsn(Type.getReturnType(desc).getOpcode(IRETURN));
+    }
+    
+    /**
+     * Delegate while holding the Ref lock.
+     * 
+     * @param mv
+     * @param name
+     * @param desc
+     * @param damped if <code>true</code> the lock is taken by the {@link Damper}
+     *        which lets the call wait for an unbound Ref.
+     */
+    private void generateLockedMethodCode(MethodVisitor mv, String name, String desc,
+        boolean damped) {
+      
+      Label l0 = new Label();
+      Label l1 = new Label();
+      mv.visitTryCatchBlock(l0, l1, l1, null);
+      
+      if (damped) {
+        /* Lock and dereference - the damper unlocks if it fails */
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, implName, REF_FIELD, FIELD_DESC);
+        mv.visitMethodInsn(INVOKESTATIC, DAMPER_CLASS, DAMPER_LOCK, DAMPER_LOCK_DESC);
+        mv.visitLabel(l0);
+      } else {
+        /* Lock */
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, implName, LOCK_FIELD, LOCK_DESC);
+        mv.visitMethodInsn(INVOKEINTERFACE, "java/util/concurrent/locks/Lock", "lock", "()V");
+        mv.visitLabel(l0);
+        
+        /* Dereference - a retired Ref fails the new callers through its binding */
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, implName, REF_FIELD, FIELD_DESC);
+        mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_BINDING, REF_BINDING_DESC);
+        mv.visitMethodInsn(INVOKEVIRTUAL, BINDING_CLASS, BINDING_VAL, BINDING_VAL_DESC);
+      }
+      mv.visitTypeInsn(CHECKCAST, ifName);
+      
+      /* Invoke */
+      Type[] args = Type.getArgumentTypes(desc);
+      int slot = 1;
+      for (int i = 0; i < args.length; slot += args[i].getSize(), i++) {
+        mv.visitVarInsn(args[i].getOpcode(ILOAD), slot);
       }
       mv.visitMethodInsn(INVOKEINTERFACE, ifName, name, desc);
       
       Label l2 = new Label();
       mv.visitJumpInsn(GOTO, l2);
       
+      Object[] locals = locals(args);
+      
       /* Unlock and re-throw */
       mv.visitLabel(l1);
-      mv.visitVarInsn(ASTORE, args.length + 1);
+      frame(mv, locals, THROWABLE);
+      mv.visitVarInsn(ASTORE, slot);
       mv.visitVarInsn(ALOAD, 0);
-      mv.visitFieldInsn(GETFIELD, implName, fieldName, FIELD_DESC);
-      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_LOCK, REF_LOCK_DESC);
+      mv.visitFieldInsn(GETFIELD, implName, LOCK_FIELD, LOCK_DESC);
       mv.visitMethodInsn(INVOKEINTERFACE, "java/util/concurrent/locks/Lock", "unlock", "()V");
-      mv.visitVarInsn(ALOAD, args.length + 1);
+      mv.visitVarInsn(ALOAD, slot);
       mv.visitInsn(ATHROW);
       
       /* Unlock and return */
       mv.visitLabel(l2);
+      Type ret = Type.getReturnType(desc);
+      if (ret.getSort() == Type.VOID) {
+        frame(mv, locals);
+      } else {
+        frame(mv, locals, frameType(ret));
+      }
       mv.visitVarInsn(ALOAD, 0);
-      mv.visitFieldInsn(GETFIELD, implName, fieldName, FIELD_DESC);
-      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_LOCK, REF_LOCK_DESC);
+      mv.visitFieldInsn(GETFIELD, implName, LOCK_FIELD, LOCK_DESC);
       mv.visitMethodInsn(INVOKEINTERFACE, "java/util/concurrent/locks/Lock", "unlock", "()V");
       mv.visitInsn(Type.getReturnType(desc).getOpcode(IRETURN));
-      
-      mv.visitMaxs(0, 0);
-      mv.visitEnd();
-      
-      visitedMethods.add(methodSig);
+    }
+    
+    /**
+     * @param args
+     * @return the frame locals of a delegation method.
+     */
+    private Object[] locals(Type[] args) {
+      Object[] res = new Object[args.length + 1];
+      res[0] = implName;
+      for (int i = 0; i < args.length; i++) {
+        res[i + 1] = frameType(args[i]);
+      }
+      return res;
     }
   }
   
+  private static final String OBJECT = "java/lang/Object";
+  private static final String THROWABLE = "java/lang/Throwable";
+  
   private final String implName;
   private final ClassLoader loader;
+  private final ProxyMode mode;
   
   private final List<MixinGenerator> mixins; 
+  /** The methods that have a meter in the order of the meter fields */
+  private final List<String> meters;
+  /** The methods that are memoized in the order of the memo table */
+  private final List<String> memoized;
+  /** The methods that run asynchronously in the order of the async table */
+  private final List<String> asyncs;
+  /** The methods that are queued in the order of the batch table */
+  private final List<String> batched;
   private final List<String> classSig;
   
-  private String constrSig = "";
-  
   private final ClassWriter cv;
   
   /**
@@ -327,14 +793,28 @@ public class ProxyClassBuilder implements Opcodes {
    * @param loader
    */
   public ProxyClassBuilder(String implName, ClassLoader loader) {
+    this(implName, loader, ProxyMode.LOCKED);
+  }
+  
+  /**
+   * @param implName
+   * @param loader
+   * @param mode
+   */
+  public ProxyClassBuilder(String implName, ClassLoader loader, ProxyMode mode) {
     this.implName = toInternalName(implName);
     this.loader = loader;
+    this.mode = mode;
     
     this.mixins = new ArrayList<MixinGenerator>();
+    this.meters = new ArrayList<String>();
+    this.memoized = new ArrayList<String>();
+    this.asyncs = new ArrayList<String>();
+    this.batched = new ArrayList<String>();
     this.classSig = new ArrayList<String>();
     this.visitedMethods = new HashSet<String>();
     
-    this.cv = new ClassWriter(ClassWriter.COMPUTE_MAXS + ClassWriter.COMPUTE_FRAMES);
+    this.cv = new ClassWriter(ClassWriter.COMPUTE_MAXS);
   }
   
   /**
@@ -344,15 +824,9 @@ public class ProxyClassBuilder implements Opcodes {
   public void add(String ifName) {
     ifName = toInternalName(ifName);
     
-    boolean first = mixins.size() == 0;
-    
     MixinGenerator e = new MixinGenerator(ifName);
     mixins.add(e);
     classSig.add(ifName);
-    
-    /* Add the mixin to the constructor signature */
-    constrSig += first ? "(" : "";
-    constrSig += "L" + REF_IFACE + ";";
   }
   
   /**
@@ -360,24 +834,54 @@ public class ProxyClassBuilder implements Opcodes {
    */
   public byte[] generate() {
     visitedMethods.clear();
+    meters.clear();
+    memoized.clear();
+    asyncs.clear();
+    batched.clear();
     
     classSig.add(PROXY_IFACE);
-    constrSig += ")V";
+    /* Async proxies also take the executor of their calls */
+    String constrSig = "(" + FIELD_DESC + ((mode == ProxyMode.ASYNC) ? EXECUTOR_DESC : "") + ")V";
    
     /* Write the class header */
-    cv.visit(V1_5, ACC_PUBLIC + ACC_SUPER, implName, null, "java/lang/Object", 
+    cv.visit(CLASS_VERSION, ACC_PUBLIC + ACC_SUPER, implName, null, "java/lang/Object", 
         classSig.toArray(new String[classSig.size()]));
     
+    /* The instantiator is defined next to the proxy class before it is initialized */
+    cv.visitField(ACC_PRIVATE + ACC_STATIC + ACC_FINAL + ACC_SYNTHETIC, INSTANTIATOR,
+        INSTANTIATOR_DESC, null, null).visitEnd();
+    
+    MethodVisitor mv = cv.visitMethod(ACC_PUBLIC + ACC_STATIC + ACC_SYNTHETIC, INSTANTIATOR, 
+        "()" + INSTANTIATOR_DESC, null, null);
+    mv.visitCode();
+    mv.visitFieldInsn(GETSTATIC, implName, INSTANTIATOR, INSTANTIATOR_DESC);
+    mv.visitInsn(ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    
     /* Start the constructor */
-    MethodVisitor mv = cv.visitMethod(ACC_PUBLIC, "<init>", constrSig, null, null);
+    mv = cv.visitMethod(ACC_PUBLIC, "<init>", constrSig, null, null);
     mv.visitCode();
     mv.visitVarInsn(ALOAD, 0);
     mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
     
-    /*
-     * Add a field to hold the delegate followed by implementations of all
-     * methods that use that field for delegation
-     */
+    /* All mixins share the same Ref so one field holds it for all */
+    cv.visitField(ACC_PRIVATE + ACC_FINAL, REF_FIELD, FIELD_DESC, null, null).visitEnd();
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitVarInsn(ALOAD, 1);
+    mv.visitFieldInsn(PUTFIELD, implName, REF_FIELD, FIELD_DESC);
+    
+    /* The lock of a Ref never changes so it is fetched once */
+    if (isLocking()) {
+      cv.visitField(ACC_PRIVATE + ACC_FINAL + ACC_SYNTHETIC, LOCK_FIELD, LOCK_DESC, null, null)
+        .visitEnd();
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitVarInsn(ALOAD, 1);
+      mv.visitMethodInsn(INVOKEINTERFACE, REF_IFACE, REF_LOCK, REF_LOCK_DESC);
+      mv.visitFieldInsn(PUTFIELD, implName, LOCK_FIELD, LOCK_DESC);
+    }
+    
+    /* Add the implementations of all methods of every mixin */
     for (int no = 0; no < mixins.size(); no++) {
       MixinGenerator e = mixins.get(no);
       
@@ -387,43 +891,302 @@ public class ProxyClassBuilder implements Opcodes {
        */
       if (no == 0) {
         e.generateProxyControl();
-        e.generateToString();
-        e.generateHashCode();
-        e.generateEquals();
+        
+        /* An async proxy has nothing to delegate these to */
+        if (mode != ProxyMode.ASYNC) {
+          e.generateToString();
+          e.generateHashCode();
+          e.generateEquals();
+        }
       }
       
-      e.generateConstructorCode(mv, no + 1);
       e.generateMixin();
     }
     
+    /* All mixins share the same Ref so they can share the same call site */
+    if (mode == ProxyMode.DIRECT && mixins.size() > 0) {
+      cv.visitField(ACC_PRIVATE + ACC_FINAL, SITE_FIELD, SITE_DESC, null, null).visitEnd();
+      
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitVarInsn(ALOAD, 1);
+      mv.visitMethodInsn(INVOKESTATIC, SITE_CLASS, SITE_OF, SITE_OF_DESC);
+      mv.visitFieldInsn(PUTFIELD, implName, SITE_FIELD, SITE_DESC);
+    }
+    
+    /* All mixins share the same Ref so they can share the same helpers */
+    if (memoized.size() > 0) {
+      generateHelper(mv, MEMO_CLASS, MEMO_FIELD, MEMO_DESC, MEMO_OF, MEMO_OF_DESC,
+          MEMO_TABLE_FIELD, MEMO_TABLE_DESC);
+    }
+    
+    if (asyncs.size() > 0) {
+      generateHelper(mv, ASYNC_CLASS, ASYNC_FIELD, ASYNC_DESC, "<init>", ASYNC_INIT_DESC,
+          ASYNC_TABLE_FIELD, ASYNC_TABLE_DESC);
+    }
+    
+    if (batched.size() > 0) {
+      generateHelper(mv, BATCH_CLASS, BATCH_FIELD, BATCH_DESC, BATCH_OF, BATCH_OF_DESC,
+          BATCH_TABLE_FIELD, BATCH_TABLE_DESC);
+    }
+    
     /* Finish the constructor */
     mv.visitInsn(RETURN);
     mv.visitMaxs(0, 0);
     mv.visitEnd();
     
+    /* Create the instantiator, the meters and the tables once the class is initialized */
+    mv = cv.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+    mv.visitCode();
+    
+    String instName = toInternalName(instantiatorName(implName));
+    mv.visitTypeInsn(NEW, instName);
+    mv.visitInsn(DUP);
+    mv.visitMethodInsn(INVOKESPECIAL, instName, "<init>", "()V");
+    mv.visitFieldInsn(PUTSTATIC, implName, INSTANTIATOR, INSTANTIATOR_DESC);
+    
+    for (int no = 0; no < meters.size(); no++) {
+      mv.visitLdcInsn(Type.getType("L" + implName + ";"));
+      mv.visitLdcInsn(meters.get(no));
+      mv.visitMethodInsn(INVOKESTATIC, METER_CLASS, METER_CREATE, METER_CREATE_DESC);
+      mv.visitFieldInsn(PUTSTATIC, implName, METER_FIELD + no, METER_DESC);
+    }
+    
+    if (memoized.size() > 0) {
+      generateTable(mv, memoized, MEMO_CLASS, MEMO_TABLE, MEMO_TABLE_INIT_DESC,
+          MEMO_TABLE_FIELD, MEMO_TABLE_DESC);
+    }
+    
+    if (asyncs.size() > 0) {
+      generateTable(mv, asyncs, ASYNC_CLASS, ASYNC_TABLE, ASYNC_TABLE_INIT_DESC,
+          ASYNC_TABLE_FIELD, ASYNC_TABLE_DESC);
+    }
+    
+    if (batched.size() > 0) {
+      generateTable(mv, batched, BATCH_CLASS, BATCH_TABLE, BATCH_TABLE_INIT_DESC,
+          BATCH_TABLE_FIELD, BATCH_TABLE_DESC);
+    }
+    
+    mv.visitInsn(RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    
     cv.visitEnd();
     
     return cv.toByteArray();
   }
   
+  /**
+   * @return <code>true</code> if some of the generated code takes the Ref lock.
+   */
+  private boolean isLocking() {
+    return mode != ProxyMode.OPTIMISTIC && mode != ProxyMode.DIRECT && mode != ProxyMode.ASYNC;
+  }
+  
+  /**
+   * Adds a field that holds a helper of every proxy and the code that creates
+   * the helper from the Ref of the proxy and the table of the class. Async
+   * helpers also get the executor passed to the constructor.
+   * 
+   * @param mv the constructor.
+   */
+  private void generateHelper(MethodVisitor mv, String clazz, String field, String desc,
+      String factory, String factoryDesc, String tableField, String tableDesc) {
+    
+    cv.visitField(ACC_PRIVATE + ACC_STATIC + ACC_FINAL + ACC_SYNTHETIC, tableField, tableDesc, null,
+        null).visitEnd();
+    cv.visitField(ACC_PRIVATE + ACC_FINAL + ACC_SYNTHETIC, field, desc, null, null).visitEnd();
+    
+    /* Helpers shared per Ref come from a static factory */
+    boolean shared = !"<init>".equals(factory);
+    
+    mv.visitVarInsn(ALOAD, 0);
+    if (!shared) {
+      mv.visitTypeInsn(NEW, clazz);
+      mv.visitInsn(DUP);
+    }
+    mv.visitVarInsn(ALOAD, 1);
+    mv.visitFieldInsn(GETSTATIC, implName, tableField, tableDesc);
+    if (ASYNC_CLASS.equals(clazz)) {
+      mv.visitVarInsn(ALOAD, 2);
+    }
+    mv.visitMethodInsn(shared ? INVOKESTATIC : INVOKESPECIAL, clazz, factory, factoryDesc);
+    mv.visitFieldInsn(PUTFIELD, implName, field, desc);
+  }
+  
+  /**
+   * Adds the code that creates the helper table of the class from the
+   * signatures of the methods that use the helper.
+   * 
+   * @param mv the static initializer.
+   */
+  private void generateTable(MethodVisitor mv, List<String> sigs, String clazz, String method,
+      String methodDesc, String field, String desc) {
+    
+    mv.visitLdcInsn(Type.getType("L" + implName + ";"));
+    mv.visitLdcInsn(Integer.valueOf(sigs.size()));
+    mv.visitTypeInsn(ANEWARRAY, toInternalName(String.class));
+    for (int no = 0; no < sigs.size(); no++) {
+      mv.visitInsn(DUP);
+      mv.visitLdcInsn(Integer.valueOf(no));
+      mv.visitLdcInsn(sigs.get(no));
+      mv.visitInsn(AASTORE);
+    }
+    mv.visitMethodInsn(INVOKESTATIC, clazz, method, methodDesc);
+    mv.visitFieldInsn(PUTSTATIC, implName, field, desc);
+  }
+  
+  /**
+   * @param pname
+   * @return the name of the instantiator of the proxy class pname.
+   */
+  public static String instantiatorName(String pname) {
+    return pname + INSTANTIATOR_SUFFIX;
+  }
+  
+  /**
+   * @return the {@link ProxyInstantiator} of the proxy class made by this
+   *         builder. Must be defined next to it.
+   */
+  public byte[] generateInstantiator() {
+    Class<?>[] params = (mode == ProxyMode.ASYNC) 
+      ? new Class<?>[] {Ref.class, Executor.class} 
+      : new Class<?>[] {Ref.class};
+    return generateInstantiator(implName.replace('/', '.'), params);
+  }
+  
+  /**
+   * Generates a {@link ProxyInstantiator} for a proxy class.
+   * 
+   * @param pname the name of the proxy class.
+   * @param params the parameters of the constructor of the proxy class. Every
+   *        Ref parameter gets the Ref of the proxy and every other parameter
+   *        gets null.
+   * @return
+   */
+  public static byte[] generateInstantiator(String pname, Class<?>[] params) {
+    String implName = toInternalName(pname);
+    String instName = toInternalName(instantiatorName(pname));
+    
+    ClassWriter cv = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cv.visit(CLASS_VERSION, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, instName, null, OBJECT, 
+        new String[] {INSTANTIATOR_IFACE});
+    
+    MethodVisitor mv = cv.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+    mv.visitCode();
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitMethodInsn(INVOKESPECIAL, OBJECT, "<init>", "()V");
+    mv.visitInsn(RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    
+    mv = cv.visitMethod(ACC_PUBLIC, "proxyClass", "()Ljava/lang/Class;", null, null);
+    mv.visitCode();
+    mv.visitLdcInsn(Type.getType("L" + implName + ";"));
+    mv.visitInsn(ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    
+    String constrSig = "(";
+    for (Class<?> param : params) {
+      constrSig += Type.getDescriptor(param);
+    }
+    constrSig += ")V";
+    
+    mv = cv.visitMethod(ACC_PUBLIC, "newProxy", "(" + FIELD_DESC + ")Ljava/lang/Object;", null, null);
+    mv.visitCode();
+    mv.visitTypeInsn(NEW, implName);
+    mv.visitInsn(DUP);
+    for (Class<?> param : params) {
+      if (param == Ref.class) {
+        mv.visitVarInsn(ALOAD, 1);
+      } else {
+        mv.visitInsn(ACONST_NULL);
+      }
+    }
+    mv.visitMethodInsn(INVOKESPECIAL, implName, "<init>", constrSig);
+    mv.visitInsn(ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    
+    cv.visitEnd();
+    return cv.toByteArray();
+  }
+  
+  /**
+   * Writes a full frame at the current position. Does nothing for class files
+   * that don't have frames.
+   * 
+   * @param mv
+   * @param locals
+   * @param stack
+   */
+  private static void frame(MethodVisitor mv, Object[] locals, Object... stack) {
+    if (CLASS_VERSION >= V1_6) {
+      mv.visitFrame(F_FULL, locals.length, locals, stack.length, stack);
+    }
+  }
+  
+  /**
+   * Replaces the primitive on top of the stack with it's wrapper.
+   * 
+   * @param mv
+   * @param type
+   */
+  private static void box(MethodVisitor mv, Type type) {
+    String wrapper = WRAPPERS.get(type);
+    if (wrapper != null) {
+      mv.visitMethodInsn(INVOKESTATIC, wrapper, "valueOf", "(" + type.getDescriptor() + ")L"
+          + wrapper + ";");
+    }
+  }
+  
+  /**
+   * Replaces the object on top of the stack with a value of type.
+   * 
+   * @param mv
+   * @param type
+   */
+  private static void unbox(MethodVisitor mv, Type type) {
+    String wrapper = WRAPPERS.get(type);
+    if (wrapper != null) {
+      mv.visitTypeInsn(CHECKCAST, wrapper);
+      mv.visitMethodInsn(INVOKEVIRTUAL, wrapper, type.getClassName() + "Value", "()"
+          + type.getDescriptor());
+    } else {
+      mv.visitTypeInsn(CHECKCAST, type.getInternalName());
+    }
+  }
+  
+  /**
+   * @param type
+   * @return the representation of type in a stack map frame.
+   */
+  private static Object frameType(Type type) {
+    switch (type.getSort()) {
+    case Type.BOOLEAN:
+    case Type.BYTE:
+    case Type.CHAR:
+    case Type.SHORT:
+    case Type.INT:
+      return INTEGER;
+    case Type.FLOAT:
+      return FLOAT;
+    case Type.LONG:
+      return LONG;
+    case Type.DOUBLE:
+      return DOUBLE;
+    default:
+      return type.getInternalName();
+    }
+  }
+  
   /**
    * @param name
    * @return
    */
-  private ClassReader getReader(String name) {
+  private Class<?> getType(String name) {
     try {
-      String path = name + ".class";
-      
-      InputStream str = ClassLoader.getSystemResourceAsStream(path);
-      
-      if (str == null) {
-        ClassLoader otherLoader = loader.loadClass(toClassName(name)).getClassLoader();
-        str = otherLoader.getResourceAsStream(path);
-      }
-
-      return new ClassReader(str);
-    } catch (IOException e) {
-      throw new ProxyException(e);
+      return loader.loadClass(toClassName(name));
     } catch (ClassNotFoundException e) {
       throw new ProxyException(e);
     }    
@@ -452,12 +1215,4 @@ public class ProxyClassBuilder implements Opcodes {
   private static String toClassName(String name) {
     return name.replace('/', '.');
   }
-  
-  /**
-   * @param name
-   * @return
-   */
-  private static String toIdentifier(String name) {
-    return name.replace('.', '_').replace('/', '_');
-  }
 }
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.unseen.proxy.gen.ProxyException;
+import org.unseen.proxy.gen.ProxyMode;
+
+/**
+ * Keeps generated proxy classes on disk between restarts. Every class is
+ * stored under a hash of the generator version, the class file version, the
+ * proxy mode and the
+ * bytecode of all interfaces the proxy implements. When an interface changes
+ * it's proxy gets a new key so stale entries are never used - they are just
+ * left behind.
+ * 
+ * @author Todor Boev
+ */
+public class ProxyClassCache {
+  /** System property that points to the default cache directory */
+  public static final String DIR_PROP = "org.unseen.proxy.cache";
+  
+  private static final String SUFFIX = ".class";
+  
+  private final File dir;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  
+  /**
+   * @param dir
+   */
+  public ProxyClassCache(File dir) {
+    this.dir = dir;
+    dir.mkdirs();
+  }
+  
+  /**
+   * @return the cache in the directory set by {@link #DIR_PROP} or null if
+   *         the property is not set.
+   */
+  public static ProxyClassCache system() {
+    String dir = System.getProperty(DIR_PROP);
+    return (dir != null) ? new ProxyClassCache(new File(dir)) : null;
+  }
+  
+  @Override
+  public String toString() {
+    return "ProxyClassCache[ " + dir + " ]";
+  }
+  
+  /**
+   * @return how many classes were found on disk.
+   */
+  public long hits() {
+    return hits.get();
+  }
+  
+  /**
+   * @return how many classes had to be generated.
+   */
+  public long misses() {
+    return misses.get();
+  }
+  
+  /**
+   * @param key
+   * @return the class bytes mapped in memory or null if they are not cached.
+   */
+  public ByteBuffer load(String key) {
+    File file = new File(dir, key + SUFFIX);
+    if (!file.isFile()) {
+      misses.incrementAndGet();
+      return null;
+    }
+    
+    try {
+      FileInputStream in = new FileInputStream(file);
+      try {
+        FileChannel channel = in.getChannel();
+        /* The mapping stays valid after the channel is closed */
+        ByteBuffer res = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        hits.incrementAndGet();
+        return res;
+      } finally {
+        in.close();
+      }
+    } catch (IOException exc) {
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+  
+  /**
+   * Several processes can share the same directory so the bytes are first
+   * written aside and than renamed over the entry so a reader never sees a
+   * partial one. Only where the rename can't replace an existing file the old
+   * entry is deleted first - a reader that misses it just generates the class.
+   * 
+   * @param key
+   * @param raw
+   */
+  public void store(String key, byte[] raw) {
+    File tmp = null;
+    try {
+      tmp = File.createTempFile(key, ".tmp", dir);
+      
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(raw);
+      } finally {
+        out.close();
+      }
+      
+      File file = new File(dir, key + SUFFIX);
+      if (tmp.renameTo(file) || (file.delete() && tmp.renameTo(file))) {
+        tmp = null;
+      }
+    } catch (IOException exc) {
+      /* The cache is only an optimization - the class is generated next time */
+    } finally {
+      if (tmp != null) {
+        tmp.delete();
+      }
+    }
+  }
+  
+  /**
+   * @param type
+   * @param mode
+   * @return the key of the proxy class for this type or null if the bytecode
+   *         of the type can not be read.
+   */
+  public static String key(Class<?> type, ProxyMode mode) {
+    try {
+      MessageDigest md = MethodTable.sha1();
+      md.update((ProxyClassBuilder.VERSION + ":" + ProxyClassBuilder.CLASS_VERSION + ":" + mode
+          + ":" + type.getName()).getBytes("UTF-8"));
+      
+      for (Class<?> cl : roots(type)) {
+        md.update(MethodTable.get(cl).digest().getBytes("UTF-8"));
+      }
+      
+      return MethodTable.toHex(md.digest());
+    } catch (ProxyException exc) {
+      return null;
+    } catch (UnsupportedEncodingException exc) {
+      return null;
+    }
+  }
+  
+  /**
+   * @param type
+   * @return the types whose method tables make up the proxy of type.
+   */
+  private static List<Class<?>> roots(Class<?> type) {
+    List<Class<?>> res = new ArrayList<Class<?>>();
+    
+    if (type.isInterface()) {
+      res.add(type);
+    }
+    
+    for (Class<?> cl = type; cl != null; cl = cl.getSuperclass()) {
+      for (Class<?> iface : cl.getInterfaces()) {
+        res.add(iface);
+      }
+    }
+    
+    if (res.isEmpty()) {
+      res.add(type);
+    }
+    
+    return res;
+  }
+}
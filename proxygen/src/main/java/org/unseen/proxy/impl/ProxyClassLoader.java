@@ -16,7 +16,40 @@
 package org.unseen.proxy.impl;
 import static org.unseen.proxy.ref.Interfaces.interfaces;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.unseen.proxy.gen.ProxyException;
+import org.unseen.proxy.gen.ProxyMode;
+
 /**
+ * Every proxy class is defined in a class loader of it's own which is a child
+ * of the class loader of the proxied type. The proxy classes are cached by the
+ * identity of the proxied type and held softly. This way a proxy class is
+ * generated once for as long as it's type lives and the memory allows, while
+ * the proxy classes of a type that went away are never pinned by the cache. A
+ * client bundle that lives through an update of the bundle that exports the
+ * proxied type gets fresh proxy classes for the new version.
+ * 
+ * Proxy classes generated at build time by {@link ProxyGenerator} and packaged
+ * with the client are looked up in the client space before a new class is
+ * generated. Every proxy class comes with a generated
+ * {@link ProxyInstantiator} so proxies are created without reflection. If a
+ * {@link ProxyClassCache} is present the newly generated
+ * classes are kept on disk for the next time the JVM starts. Loaders that are
+ * given a {@link ProxyClassSpace} share the classes they generate with all
+ * other loaders of the same space.
+ * 
+ * The loader is safe for concurrent use. A proxy class is generated at most
+ * once per type and mode while different types are generated in parallel. On
+ * JVMs that support it the loader is registered as parallel capable so
+ * concurrent lookups of pregenerated classes don't serialize on it.
  * 
  * @author Todor Boev
  * @version $Revision$
@@ -25,6 +58,36 @@ public class ProxyClassLoader extends ClassLoader {
   private static final String PREFIX = "$proxy";
   private static final ClassLoader PROXYLIB_SPACE = ProxyClassLoader.class.getClassLoader();
   
+  static {
+    /* Java 7 and later. The registration is for the caller so it must be done here. */
+    try {
+      Method register = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+      register.setAccessible(true);
+      register.invoke(null);
+    } catch (Exception exc) {
+      /* Loads one class at a time */
+    }
+  }
+  
+  /** 
+   * The names the spaces of the proxied types did not find. Must not hold on
+   * to any classes or the spaces will never go away.
+   */
+  private static final Map<ClassLoader, ConcurrentMap<String, Boolean>> TYPE_SPACE_MISSES = 
+    new WeakHashMap<ClassLoader, ConcurrentMap<String, Boolean>>();
+  
+  /** Proxy instantiators per mode keyed by the proxied type */
+  private final Map<ProxyMode, ClassCache<ProxyInstantiator>> cache;
+  
+  /** Can be null */
+  private final ProxyClassCache disk;
+  
+  /** Can be null */
+  private final ProxyClassSpace shared;
+  
+  /** What the client space found and did not find */
+  private final LookupCache lookups;
+  
 //  /** 
 //   * The list of packages that this loader will provide via the proxy bundle's 
 //   * class loader.
@@ -39,42 +102,230 @@ public class ProxyClassLoader extends ClassLoader {
    * @param proxiedSpace
    */
   public ProxyClassLoader(ClassLoader proxiedSpace) {
+    this(proxiedSpace, ProxyClassCache.system());
+  }
+  
+  /**
+   * @param proxiedSpace
+   * @param disk the cache on disk or null if generated classes are not kept.
+   */
+  public ProxyClassLoader(ClassLoader proxiedSpace, ProxyClassCache disk) {
+    this(proxiedSpace, disk, null);
+  }
+  
+  /**
+   * @param proxiedSpace
+   * @param shared the proxy classes this loader does not find pregenerated in
+   *        proxiedSpace are taken from here.
+   */
+  public ProxyClassLoader(ClassLoader proxiedSpace, ProxyClassSpace shared) {
+    this(proxiedSpace, null, shared);
+  }
+  
+  private ProxyClassLoader(ClassLoader proxiedSpace, ProxyClassCache disk, ProxyClassSpace shared) {
     super(proxiedSpace);
+    
+    this.disk = disk;
+    this.shared = shared;
+    this.lookups = new LookupCache();
+    this.cache = new EnumMap<ProxyMode, ClassCache<ProxyInstantiator>>(ProxyMode.class);
+    for (final ProxyMode mode : ProxyMode.values()) {
+      /* The proxy class holds on to the type so the cache holds it softly */
+      cache.put(mode, new ClassCache<ProxyInstantiator>() {
+        @Override
+        protected ProxyInstantiator compute(Class<?> type) {
+          return defineInstantiator(type, mode);
+        }
+      });
+    }
   }
 
   @Override
   public String toString() {
     return "ProxyClassLoader[ " + getParent() + " ]";
   }
+  
+  /**
+   * Forget the past lookups in the client space and the names the spaces of
+   * the proxied types missed. Called when the client is resolved, unresolved
+   * or updated. The wiring of one bundle can change what the others see so the
+   * misses of every type space are forgotten.
+   */
+  public void invalidate() {
+    lookups.clear();
+    if (getParent() instanceof BundleClassLoader) {
+      ((BundleClassLoader) getParent()).invalidate();
+    }
+    
+    synchronized (TYPE_SPACE_MISSES) {
+      /* The defining loaders hold on to these maps so they are emptied in place */
+      for (ConcurrentMap<String, Boolean> misses : TYPE_SPACE_MISSES.values()) {
+        misses.clear();
+      }
+    }
+  }
 
   /**
    * @param refs
    * @return
    */
   public <T> Class<?> loadProxyClass(Class<?> type) {
-    String pname = PREFIX + "." + type.getName();
-
-    /* Check if we have an appropriate proxy class created already */
-    Class<?> res = null;
-    try {
-      res = loadClass(pname);
-    } catch (ClassNotFoundException cnfe) {
-      res = defineProxyClass(type, pname);
+    return loadProxyClass(type, ProxyMode.LOCKED);
+  }
+  
+  /**
+   * @param type
+   * @param mode
+   * @return
+   */
+  public Class<?> loadProxyClass(Class<?> type, ProxyMode mode) {
+    return loadInstantiator(type, mode).proxyClass();
+  }
+  
+  /**
+   * @param type
+   * @param mode
+   * @return
+   */
+  public ProxyInstantiator loadInstantiator(Class<?> type, ProxyMode mode) {
+    return cache.get(mode).get(type);
+  }
+  
+  /**
+   * @param type
+   * @param mode
+   * @return the instantiator of the pregenerated proxy class of type or of a
+   *         freshly generated one.
+   */
+  private ProxyInstantiator defineInstantiator(Class<?> type, ProxyMode mode) {
+    ProxyInstantiator res = null;
+    
+    Class<?> pclass = findPregeneratedClass(type, mode);
+    if (pclass != null) {
+      res = defineInstantiator(pclass);
     }
     
+    if (res == null) {
+      res = (shared != null) ? shared.loadInstantiator(type, mode) : generate(type, mode, disk);
+    }
     return res;
   }
+  
+  /**
+   * @param type
+   * @param mode
+   * @param disk can be null.
+   * @return the instantiator of a new proxy class of type.
+   */
+  static ProxyInstantiator generate(Class<?> type, ProxyMode mode, ProxyClassCache disk) {
+    return defineInstantiator(defineProxyClass(type, proxyName(type, mode), mode, disk));
+  }
 
-  private Class<?> defineProxyClass(Class<?> type, String pname) throws ClassFormatError {
+  /**
+   * @param type
+   * @param mode
+   * @return the proxy class packaged with the client or null if the client
+   *         has no proxy class for this version of the type.
+   */
+  private Class<?> findPregeneratedClass(Class<?> type, ProxyMode mode) {
+    try {
+      Class<?> res = loadClass(proxyName(type, mode));
+      return type.isAssignableFrom(res) ? res : null;
+    } catch (ClassNotFoundException exc) {
+      return null;
+    } catch (UnsupportedClassVersionError exc) {
+      /* Generated on a newer JVM */
+      return null;
+    }
+  }
+  
+  /**
+   * The proxy class is defined next to the proxied type rather than in the
+   * space of the client. It only refers to the types visible from the proxied
+   * type and to the proxy library.
+   */
+  private static Class<?> defineProxyClass(Class<?> type, String pname, ProxyMode mode,
+      ProxyClassCache disk) throws ClassFormatError {
+    
+    ProxyDefiningLoader space = new ProxyDefiningLoader(type.getClassLoader());
+    
+    String key = (disk != null) ? ProxyClassCache.key(type, mode) : null;
+    if (key != null) {
+      ByteBuffer cached = disk.load(key);
+      if (cached != null) {
+        try {
+          return space.define(pname, cached);
+        } catch (ClassFormatError exc) {
+          /* Broken entry - generate it again */
+        }
+      }
+    }
+    
     /* Build the name of the new proxy class */
-    ProxyClassBuilder gen = new ProxyClassBuilder(pname, this);
+    ProxyClassBuilder gen = new ProxyClassBuilder(pname, space, mode);
 
     for (String ifname : interfaces(type)) {
       gen.add(ifname);
     }
 
     byte[] raw = gen.generate();
-    return defineClass(pname, raw, 0, raw.length);
+    if (key != null) {
+      disk.store(key, raw);
+    }
+    
+    return space.define(pname, raw);
+  }
+  
+  /**
+   * @param pclass
+   * @return the instantiator of pclass or null if pclass can't have one.
+   */
+  private static ProxyInstantiator defineInstantiator(Class<?> pclass) {
+    Method accessor;
+    try {
+      accessor = pclass.getMethod(ProxyClassBuilder.INSTANTIATOR);
+    } catch (NoSuchMethodException exc) {
+      /* Pregenerated by an older generator */
+      return null;
+    }
+    
+    /* 
+     * The proxy class creates it's instantiator when it is initialized. One
+     * generated at runtime must get it before that. A pregenerated one comes
+     * with it's instantiator.
+     */
+    ClassLoader pspace = pclass.getClassLoader();
+    boolean generated = pspace instanceof ProxyDefiningLoader;
+    if (generated) {
+      String pname = pclass.getName();
+      Class<?>[] params = pclass.getConstructors()[0].getParameterTypes();
+      ((ProxyDefiningLoader) pspace).define(ProxyClassBuilder.instantiatorName(pname),
+          ProxyClassBuilder.generateInstantiator(pname, params));
+    }
+    
+    try {
+      return (ProxyInstantiator) accessor.invoke(null);
+    } catch (InvocationTargetException exc) {
+      if (generated) {
+        throw new ProxyException(exc.getCause());
+      }
+      /* The instantiator was not packaged along */
+      return null;
+    } catch (IllegalAccessException exc) {
+      throw new ProxyException(exc);
+    }
+  }
+  
+  /**
+   * Proxies of different modes live in different packages so they never clash.
+   * 
+   * @param type
+   * @param mode
+   * @return
+   */
+  static String proxyName(Class<?> type, ProxyMode mode) {
+    String prefix = ProxyMode.LOCKED == mode ? PREFIX : PREFIX + "$" + mode.name().toLowerCase();
+    return prefix + "." + type.getName();
   }
 
   /**
@@ -91,8 +342,78 @@ public class ProxyClassLoader extends ClassLoader {
    * ensuring an extender bundle is wired to the same package as the bundle it
    * extends.
    */
+  @Override
+  protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+    Class<?> res = lookups.get(name);
+    if (res != null) {
+      return res;
+    }
+    
+    try {
+      return lookups.found(name, super.loadClass(name, resolve));
+    } catch (ClassNotFoundException exc) {
+      throw lookups.missing(name);
+    }
+  }
+  
   @Override
   protected Class<?> findClass(String name) throws ClassNotFoundException {
     return PROXYLIB_SPACE.loadClass(name);
   }
+  
+  /**
+   * @param space
+   * @return the names space did not find.
+   */
+  private static ConcurrentMap<String, Boolean> misses(ClassLoader space) {
+    synchronized (TYPE_SPACE_MISSES) {
+      ConcurrentMap<String, Boolean> res = TYPE_SPACE_MISSES.get(space);
+      if (res == null) {
+        res = new ConcurrentHashMap<String, Boolean>();
+        TYPE_SPACE_MISSES.put(space, res);
+      }
+      return res;
+    }
+  }
+  
+  /**
+   * Holds exactly one proxy class. Sees the space of the proxied type followed
+   * by the space of the proxy library. All loaders over the same type space
+   * share the names it misses so only the first proxy class of a space pays
+   * for them.
+   */
+  private static class ProxyDefiningLoader extends ClassLoader {
+    private final ConcurrentMap<String, Boolean> misses;
+    
+    public ProxyDefiningLoader(ClassLoader typeSpace) {
+      super(typeSpace);
+      this.misses = misses(typeSpace);
+    }
+    
+    public Class<?> define(String name, byte[] raw) {
+      return defineClass(name, raw, 0, raw.length);
+    }
+    
+    public Class<?> define(String name, ByteBuffer raw) {
+      return defineClass(name, raw, null);
+    }
+    
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      /* Skip the type space if it missed this name before */
+      if (misses.containsKey(name)) {
+        return PROXYLIB_SPACE.loadClass(name);
+      }
+      return super.loadClass(name, resolve);
+    }
+    
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      /* Every loader has a proxy class of it's own under the same name */
+      if (!name.startsWith(PREFIX)) {
+        misses.put(name, Boolean.TRUE);
+      }
+      return PROXYLIB_SPACE.loadClass(name);
+    }
+  }
 }
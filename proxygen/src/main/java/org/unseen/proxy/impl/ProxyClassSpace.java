@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.unseen.proxy.gen.ProxyMode;
+
+/**
+ * The generated proxy classes shared by many {@link ProxyClassLoader}s. A
+ * generated proxy class depends only on the proxied type and is defined next
+ * to it so every client that sees the same type can use the same class. The
+ * classes are keyed by the identity of the proxied type so the clients that
+ * see different versions of a type still get different classes.
+ *
+ * @author Todor Boev
+ */
+public class ProxyClassSpace {
+  private static final ProxyClassSpace SYSTEM = new ProxyClassSpace(ProxyClassCache.system());
+
+  /** Can be null */
+  private volatile ProxyClassCache disk;
+  private final Map<ProxyMode, ClassCache<ProxyInstantiator>> cache;
+
+  private final AtomicLong loads;
+  private final AtomicLong generated;
+
+  /**
+   * @param disk the cache on disk or null if generated classes are not kept.
+   */
+  public ProxyClassSpace(ProxyClassCache disk) {
+    this.disk = disk;
+    this.loads = new AtomicLong();
+    this.generated = new AtomicLong();
+
+    this.cache = new EnumMap<ProxyMode, ClassCache<ProxyInstantiator>>(ProxyMode.class);
+    for (final ProxyMode mode : ProxyMode.values()) {
+      cache.put(mode, new ClassCache<ProxyInstantiator>() {
+        @Override
+        protected ProxyInstantiator compute(Class<?> type) {
+          generated.incrementAndGet();
+          return ProxyClassLoader.generate(type, mode, ProxyClassSpace.this.disk);
+        }
+      });
+    }
+  }
+
+  /**
+   * @return the space shared by everybody in this JVM. Keeps the classes on
+   *         disk if {@link ProxyClassCache#system()} says so or if the proxy
+   *         bundle gives it a cache.
+   */
+  public static ProxyClassSpace system() {
+    return SYSTEM;
+  }
+
+  /**
+   * @param disk where to keep the classes generated from now on or null if
+   *        they should not be kept.
+   */
+  public void setDisk(ProxyClassCache disk) {
+    this.disk = disk;
+  }
+
+  @Override
+  public String toString() {
+    return "ProxyClassSpace[ " + generated() + " classes for " + loads() + " loads, "
+        + saved() + " saved ]";
+  }
+
+  /**
+   * @return how many times the loaders of this space asked for a proxy class.
+   */
+  public long loads() {
+    return loads.get();
+  }
+
+  /**
+   * @return how many proxy classes were generated. Every load over this number
+   *         is a proxy class and instantiator that a loader of it's own would
+   *         have generated and defined again.
+   */
+  public long generated() {
+    return generated.get();
+  }
+
+  /**
+   * @return how many proxy classes the loaders of this space did not have to
+   *         define on their own.
+   */
+  public long saved() {
+    return loads() - generated();
+  }
+
+  /**
+   * @param type
+   * @param mode
+   * @return
+   */
+  ProxyInstantiator loadInstantiator(Class<?> type, ProxyMode mode) {
+    loads.incrementAndGet();
+    return cache.get(mode).get(type);
+  }
+}
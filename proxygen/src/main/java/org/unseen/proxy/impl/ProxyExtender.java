@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.unseen.proxy.gen.ProxyException;
+import org.unseen.proxy.gen.ProxyMode;
+
+/**
+ * Generates the proxy classes of a bundle in the background as soon as the
+ * bundle is resolved so they are ready by the time the bundle starts. The
+ * bundle lists the interfaces it will proxy in its manifest:
+ *
+ * <pre>
+ * Proxy-Interfaces: org.osgi.framework.BundleContext,...
+ * Proxy-Mode: DAMPED
+ * </pre>
+ *
+ * The mode defaults to the one of the gyroscope imports. The classes go to a
+ * {@link ProxyClassSpace} and stay there for as long as their types live.
+ *
+ * @author Todor Boev
+ */
+public class ProxyExtender implements SynchronousBundleListener {
+  /** The interfaces to proxy separated by commas */
+  public static final String INTERFACES_HEADER = "Proxy-Interfaces";
+  /** The name of a {@link ProxyMode} */
+  public static final String MODE_HEADER = "Proxy-Mode";
+
+  private final ProxyClassSpace space;
+  private final ExecutorService exec;
+  /** Events can still arrive while the listener is being removed */
+  private volatile boolean closed;
+
+  /**
+   * @param space
+   */
+  public ProxyExtender(ProxyClassSpace space) {
+    this.space = space;
+    this.exec = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread res = new Thread(r, "Proxy pregeneration");
+            res.setDaemon(true);
+            res.setPriority(Thread.MIN_PRIORITY);
+            return res;
+          }
+        });
+  }
+
+  /**
+   * Stop generating. The classes that are ready are left to the space. Waits a
+   * little for the generation in progress to stop.
+   */
+  public void close() {
+    closed = true;
+    exec.shutdownNow();
+    
+    try {
+      exec.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public void bundleChanged(BundleEvent event) {
+    if (event.getType() == BundleEvent.RESOLVED) {
+      pregenerate(event.getBundle());
+    }
+  }
+
+  /**
+   * Schedule the generation of the proxy classes listed by bundle.
+   *
+   * @param bundle
+   */
+  public void pregenerate(final Bundle bundle) {
+    if (closed) {
+      return;
+    }
+    
+    final String names = (String) bundle.getHeaders().get(INTERFACES_HEADER);
+    if (names == null) {
+      return;
+    }
+
+    final ProxyMode mode = mode(bundle);
+
+    try {
+      exec.execute(new Runnable() {
+        public void run() {
+          for (String name : names.split(",")) {
+            if (closed) {
+              return;
+            }
+            
+            name = name.trim();
+            if (name.length() == 0) {
+              continue;
+            }
+
+            try {
+              space.loadInstantiator(bundle.loadClass(name), mode);
+            } catch (Exception exc) {
+              /* The bundle will fail the same way when it needs the proxy */
+              Failures.report(new ProxyException(bundle.getSymbolicName()
+                  + ": Can't pregenerate a proxy of " + name, exc));
+            }
+          }
+        }
+      });
+    } catch (RejectedExecutionException exc) {
+      /* Closed while the event was on its way */
+    }
+  }
+
+  /**
+   * @param bundle
+   * @return the mode the bundle asks for or the default if it asks for no mode
+   *         or for one that does not exist.
+   */
+  private static ProxyMode mode(Bundle bundle) {
+    String name = (String) bundle.getHeaders().get(MODE_HEADER);
+    if (name == null) {
+      return ProxyMode.DAMPED;
+    }
+
+    try {
+      return ProxyMode.valueOf(name.trim().toUpperCase());
+    } catch (IllegalArgumentException exc) {
+      /* Pregenerating the wrong mode only costs some time */
+      Failures.report(new ProxyException(bundle.getSymbolicName() + ": Unknown " + MODE_HEADER
+          + " " + name + ", using " + ProxyMode.DAMPED, exc));
+      return ProxyMode.DAMPED;
+    }
+  }
+}
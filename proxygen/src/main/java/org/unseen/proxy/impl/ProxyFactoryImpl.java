@@ -15,10 +15,14 @@
  */
 package org.unseen.proxy.impl;
 
-import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
+import org.unseen.proxy.gen.Async;
 import org.unseen.proxy.gen.ProxyException;
 import org.unseen.proxy.gen.ProxyFactory;
+import org.unseen.proxy.gen.ProxyMode;
 import org.unseen.proxy.ref.Ref;
 
 
@@ -28,12 +32,22 @@ import org.unseen.proxy.ref.Ref;
  */
 public class ProxyFactoryImpl implements ProxyFactory {
   private final ProxyClassLoader loader;
+  private final ProxyMode mode;
   
   /**
    * @param loader
    */
   public ProxyFactoryImpl(ProxyClassLoader loader) {
+    this(loader, ProxyMode.LOCKED);
+  }
+  
+  /**
+   * @param loader
+   * @param mode
+   */
+  public ProxyFactoryImpl(ProxyClassLoader loader, ProxyMode mode) {
     this.loader = loader;
+    this.mode = mode;
   }
   
   /**
@@ -50,22 +64,62 @@ public class ProxyFactoryImpl implements ProxyFactory {
     }
     
     try {
-      Class<?> pclass = loader.loadProxyClass(type);
-      
-      /*
-       * The proxy class will have only one constructor that takes N Ref
-       * arguments. Each argument corresponds to a proxied interface.
-       */
-      Constructor<?> constr = pclass.getConstructors()[0];
-      
-      int len = constr.getParameterTypes().length;
+      return (V) loader.loadInstantiator(type, mode).newProxy(ref);
+    } catch (Throwable thr) {
+      throw new ProxyException(thr);
+    }
+  }
+  
+  /**
+   * @see org.unseen.proxy.gen.ProxyFactory#proxies(java.lang.Class, java.util.List)
+   */
+  @SuppressWarnings("unchecked")
+  public <V> List<V> proxies(Class<?> type, List<? extends Ref<?, V>> refs) {
+    if (type == null) {
+      throw new NullPointerException();
+    }
+    
+    if (refs == null) {
+      throw new NullPointerException();
+    }
+    
+    List<V> res = new ArrayList<V>(refs.size());
+    try {
+      /* Look up the proxy class once for all Refs */
+      ProxyInstantiator inst = loader.loadInstantiator(type, mode);
       
-      Object[] vals = new Object[len];
-      for (int i = 0; i < len; i++) {
-        vals[i] = ref;
+      for (Ref<?, V> ref : refs) {
+        if (ref == null) {
+          throw new NullPointerException();
+        }
+        
+        res.add((V) inst.newProxy(ref));
       }
-      
-      return (V) constr.newInstance(vals);
+    } catch (Throwable thr) {
+      throw new ProxyException(thr);
+    }
+    return res;
+  }
+  
+  /**
+   * @see org.unseen.proxy.gen.ProxyFactory#async(java.lang.Class, org.unseen.proxy.ref.Ref, java.util.concurrent.Executor)
+   */
+  public <A> A async(Class<A> companion, Ref<?, ?> ref, Executor exec) {
+    if (companion == null) {
+      throw new NullPointerException();
+    }
+    
+    if (ref == null) {
+      throw new NullPointerException();
+    }
+    
+    if (!companion.isAnnotationPresent(Async.class)) {
+      throw new ProxyException(companion + ": Not marked @" + Async.class.getSimpleName());
+    }
+    
+    try {
+      Class<?> pclass = loader.loadProxyClass(companion, ProxyMode.ASYNC);
+      return companion.cast(pclass.getConstructor(Ref.class, Executor.class).newInstance(ref, exec));
     } catch (Throwable thr) {
       throw new ProxyException(thr);
     }
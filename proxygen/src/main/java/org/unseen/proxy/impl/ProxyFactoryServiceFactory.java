@@ -15,19 +15,64 @@
  */
 package org.unseen.proxy.impl;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.ServiceFactory;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.SynchronousBundleListener;
 
 /**
+ * Gives every bundle a proxy factory over it's own space. Must be registered as
+ * a bundle listener so the loaders forget their lookups when the wiring of the
+ * bundles changes.
  *
  * @author Todor Boev
  */
-public class ProxyFactoryServiceFactory implements ServiceFactory {
+public class ProxyFactoryServiceFactory implements ServiceFactory, SynchronousBundleListener {
+	/** Shared by all bundles so they don't generate the same classes over and over */
+	private final ProxyClassSpace shared;
+	
+	/** The loaders of the bundles that use the factory */
+	private final ConcurrentMap<Bundle, ProxyClassLoader> loaders;
+	
+	public ProxyFactoryServiceFactory(ProxyClassSpace shared) {
+		this.shared = shared;
+		this.loaders = new ConcurrentHashMap<Bundle, ProxyClassLoader>();
+	}
+	
 	public Object getService(Bundle bundle, ServiceRegistration registration) {
-		return new ProxyFactoryImpl(new ProxyClassLoader(new BundleClassLoader(bundle)));
+		/* The bundle space is only searched for pregenerated proxies */
+		ProxyClassLoader loader = new ProxyClassLoader(new BundleClassLoader(bundle), shared);
+		loaders.put(bundle, loader);
+		return new ProxyFactoryImpl(loader);
 	}
 
 	public void ungetService(Bundle bundle, ServiceRegistration registration, Object service) {
+		loaders.remove(bundle);
+	}
+	
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.RESOLVED:
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.UPDATED:
+			/* 
+			 * The wiring of one bundle can change what the others see so all
+			 * lookups are forgotten
+			 */
+			for (ProxyClassLoader loader : loaders.values()) {
+				loader.invalidate();
+			}
+			
+			/* 
+			 * The proxy classes of an unresolved bundle are not dropped here. The
+			 * caches hold them by the identity of their types so they go away
+			 * along with the old space while the classes of the other bundles stay.
+			 */
+			break;
+		}
 	}
 }
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import static org.unseen.proxy.ref.Interfaces.interfaces;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.unseen.proxy.gen.ProxyException;
+import org.unseen.proxy.gen.ProxyMode;
+
+/**
+ * Generates proxy classes at build time. The classes are written under the
+ * same names {@link ProxyClassLoader} would give them at runtime so once they
+ * are packaged in a bundle the ProxyClassLoader of that bundle finds them and
+ * skips the runtime generation. Every proxy class is written along with it's
+ * {@link ProxyInstantiator}.
+ * 
+ * Usage: ProxyGenerator &lt;output dir&gt; &lt;mode&gt; &lt;interface,...&gt;
+ * 
+ * The interfaces and the proxy library must be on the class path.
+ * 
+ * @author Todor Boev
+ */
+public class ProxyGenerator {
+  private final File dir;
+  private final ProxyMode mode;
+  private final ClassLoader loader;
+  
+  /**
+   * @param dir
+   * @param mode
+   * @param loader
+   */
+  public ProxyGenerator(File dir, ProxyMode mode, ClassLoader loader) {
+    this.dir = dir;
+    this.mode = mode;
+    this.loader = loader;
+  }
+  
+  /**
+   * @param name
+   * @return the file the proxy class was written to.
+   */
+  public File generate(String name) {
+    try {
+      Class<?> type = Class.forName(name, false, loader);
+      String pname = ProxyClassLoader.proxyName(type, mode);
+      
+      ProxyClassBuilder gen = new ProxyClassBuilder(pname, loader, mode);
+      for (String ifname : interfaces(type)) {
+        gen.add(ifname);
+      }
+      
+      write(ProxyClassBuilder.instantiatorName(pname), gen.generateInstantiator());
+      return write(pname, gen.generate());
+    } catch (ClassNotFoundException exc) {
+      throw new ProxyException(exc);
+    } catch (IOException exc) {
+      throw new ProxyException(exc);
+    }
+  }
+  
+  private File write(String name, byte[] raw) throws IOException {
+    File file = new File(dir, name.replace('.', File.separatorChar) + ".class");
+    file.getParentFile().mkdirs();
+    
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(raw);
+    } finally {
+      out.close();
+    }
+    
+    return file;
+  }
+  
+  public static void main(String[] args) {
+    if (args.length != 3) {
+      System.err.println("Usage: ProxyGenerator <output dir> <mode> <interface,...>");
+      System.exit(1);
+    }
+    
+    ProxyGenerator gen = new ProxyGenerator(new File(args[0]), 
+        ProxyMode.valueOf(args[1].trim().toUpperCase()), 
+        Thread.currentThread().getContextClassLoader());
+    
+    for (String name : args[2].split(",")) {
+      name = name.trim();
+      if (name.length() > 0) {
+        System.out.println("Generated " + gen.generate(name));
+      }
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.impl;
+
+import org.unseen.proxy.ref.Ref;
+
+/**
+ * Creates instances of one proxy class without reflection. An implementation
+ * is generated next to every proxy class.
+ * 
+ * Used by the generated code so it must stay public.
+ * 
+ * @author Todor Boev
+ */
+public interface ProxyInstantiator {
+  /**
+   * @return the proxy class.
+   */
+  Class<?> proxyClass();
+  
+  /**
+   * @param ref
+   * @return a new proxy backed by ref.
+   */
+  Object newProxy(Ref<?, ?> ref);
+}
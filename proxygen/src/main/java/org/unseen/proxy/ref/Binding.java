@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.ref;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.unseen.proxy.ref.Ref.State;
+
+/**
+ * An immutable snapshot of the arg, val, attributes and state of a {@link Ref}
+ * taken at the moment of the last state transition. A new snapshot is
+ * published on every transition so readers can use a snapshot without holding
+ * {@link Ref#lock()}. The price is that a reader can keep calling a val() that
+ * has just started unbinding - the snapshot does not delay unbind() the way
+ * the lock does.
+ *
+ * @author Todor Boev
+ *
+ * @param <A>
+ * @param <V>
+ */
+public final class Binding<A, V> {
+  private final Ref<A, V> ref;
+  private final State state;
+  private final A arg;
+  private final V val;
+  private final Map<String, Object> attrs;
+
+  public Binding(Ref<A, V> ref, State state, A arg, V val, Map<String, Object> attrs) {
+    this.ref = ref;
+    this.state = state;
+    this.arg = arg;
+    this.val = val;
+    this.attrs = (attrs != null) ? Collections.unmodifiableMap(attrs) : null;
+  }
+
+  @Override
+  public String toString() {
+    return "Binding(" + state + ")[" + arg + "->" + val + "]";
+  }
+
+  /**
+   * @return the Ref which published this snapshot.
+   */
+  public Ref<A, V> ref() {
+    return ref;
+  }
+
+  /**
+   * @return
+   */
+  public State state() {
+    return state;
+  }
+
+  /**
+   * @return
+   */
+  public A arg() {
+    if (!isAvailable()) {
+      throw failure();
+    }
+    return arg;
+  }
+
+  /**
+   * @return
+   */
+  public V val() {
+    if (!isAvailable()) {
+      if (ref instanceof RefImpl) {
+        return ((RefImpl<A, V>) ref).unbound();
+      }
+      throw new RefUnboundException(ref);
+    }
+    return val;
+  }
+
+  /**
+   * @return
+   */
+  public Map<String, Object> attributes() {
+    if (!isAvailable()) {
+      throw failure();
+    }
+    return attrs;
+  }
+
+  /**
+   * Let the Ref count the failure and pick the exception.
+   */
+  private RefUnboundException failure() {
+    if (ref instanceof RefImpl) {
+      return ((RefImpl<A, V>) ref).failure();
+    }
+    return new RefUnboundException(ref);
+  }
+
+  /**
+   * @return <code>true</code> if arg(), val() and attributes() can be called.
+   */
+  public boolean isAvailable() {
+    return State.BOUND == state || State.UNBINDING == state;
+  }
+}
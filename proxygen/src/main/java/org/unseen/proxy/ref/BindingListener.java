@@ -0,0 +1,28 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.ref;
+
+/**
+ * Receives every {@link Binding} a {@link Ref} publishes. Unlike
+ * {@link RefListener} this is called synchronously from within the state
+ * transition, before the new state is visible to the {@link RefListener}s. It
+ * must return quickly and must not call back into the Ref.
+ * 
+ * @author Todor Boev
+ */
+public interface BindingListener {
+  void published(Binding<?, ?> binding);
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.ref;
+
+/**
+ * Selects what a {@link Ref} throws at the callers that find it unbound. The
+ * failures are counted by {@link Ref#failures()} regardless of the policy.
+ *
+ * @author Todor Boev
+ */
+public enum FailPolicy {
+  /**
+   * Every failed call gets a new {@link RefUnboundException} with a stack
+   * trace pointing to the caller.
+   */
+  THROW {
+    @Override
+    RefUnboundException create(Ref<?, ?> ref) {
+      return null;
+    }
+  },
+
+  /**
+   * Every failed call gets the same {@link RefUnboundException} without a
+   * stack trace. Makes failing as cheap as a plain return so a service that
+   * goes away under a heavy load does not bury the callers in stack walks.
+   */
+  FAST {
+    @Override
+    RefUnboundException create(Ref<?, ?> ref) {
+      return new RefUnboundException(ref) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+          return this;
+        }
+      };
+    }
+  };
+
+  /**
+   * @param ref
+   * @return the exception to be thrown on every failure of ref or
+   *         <code>null</code> if each failure needs a new one.
+   */
+  abstract RefUnboundException create(Ref<?, ?> ref);
+}
@@ -15,27 +15,65 @@
  */
 package org.unseen.proxy.ref;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
+ * Computes the interfaces of a class once and keeps them for as long as the
+ * class is around. Every caller gets a copy of its own.
+ * 
  * @author Todor Boev
  *
  */
 public class Interfaces {
+  /* The values hold only names so they don't keep the classes alive */
+  private static final Map<Class<?>, String[]> DIRECT = 
+    Collections.synchronizedMap(new WeakHashMap<Class<?>, String[]>());
+  private static final Map<Class<?>, String[]> FLAT = 
+    Collections.synchronizedMap(new WeakHashMap<Class<?>, String[]>());
+  
   /**
    * FIX Add more parameters to guide the mode in which interfaces are extracted
-   * - only the superclass hierarchy, only the concrete class, flatten the
-   * entire hierarchy, include classes - not only interfaces.
+   * - only the concrete class, include classes - not only interfaces.
    * 
    * @param type
-   * @return
+   * @return the interfaces implemented by type and its superclasses without
+   *         duplicates.
    */
   public static String[] interfaces(Class<?> type) {
-    List<String> names = new ArrayList<String>();
+    String[] res = DIRECT.get(type);
+    if (res == null) {
+      res = collect(type, false);
+      DIRECT.put(type, res);
+    }
+    return res.clone();
+  }
+  
+  /**
+   * @param type
+   * @return same as {@link #interfaces(Class)} followed by all interfaces they
+   *         extend.
+   */
+  public static String[] flatInterfaces(Class<?> type) {
+    String[] res = FLAT.get(type);
+    if (res == null) {
+      res = collect(type, true);
+      FLAT.put(type, res);
+    }
+    return res.clone();
+  }
+  
+  private static String[] collect(Class<?> type, boolean flat) {
+    Set<String> names = new LinkedHashSet<String>();
     
     if (type.isInterface()) {
       names.add(type.getName());
+      if (flat) {
+        collectSuper(type, names);
+      }
     }
     
     for (Class<?> cl = type; cl != null; cl = cl.getSuperclass()) {
@@ -44,6 +82,14 @@ public class Interfaces {
       }
     }
     
+    if (flat) {
+      for (Class<?> cl = type; cl != null; cl = cl.getSuperclass()) {
+        for (Class<?> iface : cl.getInterfaces()) {
+          collectSuper(iface, names);
+        }
+      }
+    }
+    
     if (names.isEmpty()) {
       /*
        * Add the implementation class if no interfaces were collected.
@@ -56,4 +102,12 @@ public class Interfaces {
     
     return names.toArray(new String[names.size()]);
   }
+  
+  private static void collectSuper(Class<?> iface, Set<String> names) {
+    for (Class<?> sup : iface.getInterfaces()) {
+      if (names.add(sup.getName())) {
+        collectSuper(sup, names);
+      }
+    }
+  }
 }
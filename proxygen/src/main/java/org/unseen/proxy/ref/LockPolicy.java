@@ -0,0 +1,241 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.ref;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Selects the lock a {@link Ref} hands out from {@link Ref#lock()} and uses to
+ * guard it's state transitions. Proxies always call through {@link Ref#lock()}
+ * so they honor whatever policy the Ref was created with.
+ *
+ * @author Todor Boev
+ */
+public enum LockPolicy {
+  /**
+   * No locking at all. For Refs that are only ever touched by one thread like
+   * the inner links of a transformer chain. The callers are not counted so a
+   * grace-period unbind waits out its whole timeout.
+   */
+  NONE {
+    @Override
+    RefLock create() {
+      return new RefLock() {
+        public Lock readLock() {
+          return NOTHING;
+        }
+
+        public Lock writeLock() {
+          return NOTHING;
+        }
+
+        public int readers() {
+          return 0;
+        }
+        
+        public boolean counting() {
+          return false;
+        }
+        
+        public int stamp() {
+          return 0;
+        }
+        
+        public boolean validate(int stamp) {
+          return true;
+        }
+      };
+    }
+  },
+
+  /**
+   * Callers share a read lock. State transitions wait for all callers to
+   * release it.
+   */
+  READ_WRITE {
+    @Override
+    RefLock create() {
+      return new ReentrantRefLock();
+    }
+  },
+
+  /**
+   * Callers take no lock. Every state transition bumps a version before and
+   * after it changes the Ref so a reader can check it saw a consistent state
+   * and read again if it did not. Transitions are serialized between
+   * themselves but never wait for the callers. The callers are not counted so
+   * a grace-period unbind waits out its whole timeout.
+   */
+  OPTIMISTIC {
+    @Override
+    RefLock create() {
+      return new OptimisticRefLock();
+    }
+  },
+
+  /**
+   * Like {@link #READ_WRITE} but the callers are counted on per-core stripes so
+   * they do not fight over a single cache line. Costs about a kilobyte per Ref
+   * so it should be used for hot services only.
+   */
+  STRIPED {
+    @Override
+    RefLock create() {
+      return new StripedReadWriteLock();
+    }
+  };
+
+  /**
+   * @return a new lock that implements this policy.
+   */
+  abstract RefLock create();
+
+  /**
+   *
+   */
+  private static class ReentrantRefLock extends ReentrantReadWriteLock implements RefLock {
+    private static final long serialVersionUID = 1L;
+
+    public int readers() {
+      return getReadLockCount();
+    }
+    
+    public boolean counting() {
+      return true;
+    }
+    
+    public int stamp() {
+      return 0;
+    }
+    
+    public boolean validate(int stamp) {
+      return true;
+    }
+  }
+  
+  /**
+   * A sequence lock. The version is odd while a writer holds the lock.
+   */
+  private static class OptimisticRefLock implements RefLock {
+    private final ReentrantLock writer = new ReentrantLock();
+    private volatile int version;
+    
+    private final Lock writeLock = new Lock() {
+      public void lock() {
+        writer.lock();
+        enter();
+      }
+
+      public void lockInterruptibly() throws InterruptedException {
+        writer.lockInterruptibly();
+        enter();
+      }
+
+      public boolean tryLock() {
+        if (!writer.tryLock()) {
+          return false;
+        }
+        enter();
+        return true;
+      }
+
+      public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        if (!writer.tryLock(time, unit)) {
+          return false;
+        }
+        enter();
+        return true;
+      }
+
+      public void unlock() {
+        if (writer.getHoldCount() == 1) {
+          version++;
+        }
+        writer.unlock();
+      }
+
+      public Condition newCondition() {
+        throw new UnsupportedOperationException("A Ref never waits on its write lock");
+      }
+      
+      /* Only the holder of writer changes the version */
+      private void enter() {
+        if (writer.getHoldCount() == 1) {
+          version++;
+        }
+      }
+    };
+    
+    public Lock readLock() {
+      return NOTHING;
+    }
+
+    public Lock writeLock() {
+      return writeLock;
+    }
+
+    public int readers() {
+      return 0;
+    }
+    
+    public boolean counting() {
+      return false;
+    }
+    
+    public int stamp() {
+      return version;
+    }
+    
+    public boolean validate(int stamp) {
+      /* The writer sees its own changes */
+      return ((stamp & 1) == 0 && stamp == version) || writer.isHeldByCurrentThread();
+    }
+  }
+
+  /**
+   * A lock that is always free. Nothing can wait on it so it has no
+   * conditions.
+   */
+  private static final Lock NOTHING = new Lock() {
+    public void lock() {
+      /* Nothing to do */
+    }
+
+    public void lockInterruptibly() {
+      /* Nothing to do */
+    }
+
+    public boolean tryLock() {
+      return true;
+    }
+
+    public boolean tryLock(long time, TimeUnit unit) {
+      return true;
+    }
+
+    public void unlock() {
+      /* Nothing to do */
+    }
+
+    public Condition newCondition() {
+      throw new UnsupportedOperationException("A lock that is always free has no conditions");
+    }
+  };
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.ref;
+
+/**
+ * A block of code that works directly with the delegate of a {@link Ref}. See
+ * {@link Refs#withBound(Ref, Pinned)}.
+ * 
+ * @author Todor Boev
+ * 
+ * @param <V>
+ * @param <R>
+ */
+public interface Pinned<V, R> {
+  /**
+   * Several Refs that are pinned together over and over. Built once by
+   * {@link Refs#group(Object...)} with the lock order worked out up front so
+   * {@link Refs#withBound(Group, Pinned)} allocates nothing. The array of
+   * delegates is reused so a group must be pinned by one thread at a time.
+   */
+  final class Group {
+    /** In the order given by the user */
+    final Ref<?, ?>[] refs;
+    /** In the order of locking */
+    final Ref<?, ?>[] order;
+    /** Two different Refs tie in the lock order */
+    final boolean tie;
+    final Object[] vals;
+    
+    Group(Ref<?, ?>[] refs, Ref<?, ?>[] order, boolean tie) {
+      this.refs = refs;
+      this.order = order;
+      this.tie = tie;
+      this.vals = new Object[refs.length];
+    }
+  }
+  
+  /**
+   * @param val the delegate. Must not be used after this method returns.
+   * @return
+   */
+  R run(V val);
+}
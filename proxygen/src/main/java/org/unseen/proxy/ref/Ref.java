@@ -16,6 +16,8 @@
 package org.unseen.proxy.ref;
 
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
 /**
@@ -72,10 +74,20 @@ public interface Ref<A, V> {
   
   /**
    * @return lock which can be held to ensure the state() will not change while
-   *         a critical section of code is executed.
+   *         a critical section of code is executed. Always the same lock so
+   *         proxies can cache it. Like the read lock of a
+   *         ReentrantReadWriteLock it has no conditions.
    */
   Lock lock();
-  
+
+  /**
+   * Thread-safe lock-free alternative to lock() + val(). The returned snapshot
+   * never changes. A new one is published every time the state() changes.
+   *
+   * @return the binding published by the last state transition.
+   */
+  Binding<A, V> binding();
+
   /**
    * @param arg
    * @param attrs a heterogeneous collection of named objects.
@@ -83,8 +95,13 @@ public interface Ref<A, V> {
   void bind(A arg, Map<String, Object> attrs);
   
   /**
+   * If arg is null or the current argument and the transformer is an
+   * {@link UpdatableTransformer} the value is patched in place. Otherwise a new
+   * arg is unmapped and mapped again.
+   * 
    * @param arg
-   * @param attrs
+   * @param attrs the new attributes. Kept as they are - the caller must not
+   *        change them afterwards.
    */
   void update(A arg, Map<String, Object> attrs);
   
@@ -93,6 +110,85 @@ public interface Ref<A, V> {
    */
   void unbind();
 
+  /**
+   * Grace-period unbind. This Ref becomes unavailable to new callers right
+   * away, while the calls already holding lock() are allowed to complete. The
+   * unbind itself runs on exec once those calls drain or the timeout expires -
+   * whichever comes first. The calling thread never waits for the calls in
+   * progress.
+   * 
+   * Only the published binding() turns unbound. Until the unbind runs val()
+   * and arg() keep working for the callers that got in before and for the
+   * listeners. New callers must check binding() after they take lock().
+   * 
+   * @param exec runs the unbind.
+   * @param timeout how long to wait for the calls in progress.
+   * @param unit
+   */
+  void unbind(Executor exec, long timeout, TimeUnit unit);
+  
+  /**
+   * @return the number of calls currently holding lock() or 0 if the
+   *         {@link LockPolicy} of this Ref does not track it's callers. A
+   *         grace-period unbind of such a Ref always waits out its timeout.
+   */
+  int inFlight();
+  
+  /**
+   * @return the number of calls that were still in flight when the last
+   *         grace-period unbind stopped waiting for them. 0 if they all
+   *         drained in time.
+   */
+  int stragglers();
+  
+  /**
+   * Waits for this Ref to become available.
+   * 
+   * @param timeout
+   * @param unit
+   * @return <code>true</code> if the Ref is available, <code>false</code> if the
+   *         timeout expired first.
+   * @throws InterruptedException
+   */
+  boolean await(long timeout, TimeUnit unit) throws InterruptedException;
+  
+  /**
+   * Sets how long a call through a damped proxy waits for this Ref to become
+   * available before it fails. 0 by default.
+   * 
+   * @param timeout
+   * @param unit
+   */
+  void damp(long timeout, TimeUnit unit);
+  
+  /**
+   * @return how long in nanoseconds a call through a damped proxy waits for
+   *         this Ref.
+   */
+  long damping();
+  
+  /**
+   * @return how many calls found this Ref unbound since it was created. Calls
+   *         that were given a fallback count as well.
+   */
+  long failures();
+
+  /**
+   * @param key
+   * @return the object attached to this Ref under key or <code>null</code>.
+   */
+  Object attachment(Object key);
+  
+  /**
+   * Lets the helpers of the generated proxies keep one shared object per Ref
+   * instead of one per proxy. An attachment lives as long as the Ref.
+   * 
+   * @param key
+   * @param val
+   * @return the object already attached under key or val if there was none.
+   */
+  Object attach(Object key, Object val);
+
   /**
    * @param l
    */
@@ -102,4 +198,14 @@ public interface Ref<A, V> {
    * @param l
    */
   void removeListener(RefListener l);
+  
+  /**
+   * @param l
+   */
+  void addBindingListener(BindingListener l);
+  
+  /**
+   * @param l
+   */
+  void removeBindingListener(BindingListener l);
 }
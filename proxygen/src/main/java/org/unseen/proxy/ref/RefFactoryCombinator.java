@@ -27,4 +27,11 @@ public interface RefFactoryCombinator<A, V> {
   <N> RefFactoryCombinator<A, N> to(Transformer<V, N> next);
 
   RefFactory<A, V> factory();
+
+  /**
+   * @param policy locks the Ref of every chain. The whole chain is fused into
+   *        that single Ref.
+   * @return
+   */
+  RefFactory<A, V> factory(LockPolicy policy);
 }
\ No newline at end of file
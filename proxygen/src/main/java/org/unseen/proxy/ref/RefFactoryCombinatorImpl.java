@@ -15,43 +15,153 @@
  */
 package org.unseen.proxy.ref;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 /**
+ * Fuses the whole chain into one {@link Transformer} so every {@link Ref} made
+ * by a factory has one lock and one state no matter how long the chain is.
  * 
  * @param <A>
  * @param <V>
  */
 public class RefFactoryCombinatorImpl<A, V> implements RefFactoryCombinator<A, V> {
-  private final RefFactory<A, V> fact;
+  /**
+   * Runs the links of a chain. Remembers the value of every link so they can
+   * be unmapped in reverse. The Ref it belongs to serializes the calls so it
+   * needs no locking of its own.
+   */
+  private static class Chain implements Transformer<Object, Object> {
+    protected final Transformer<Object, Object>[] links;
+    protected final Object[] vals;
+    
+    public Chain(Transformer<Object, Object>[] links) {
+      this.links = links;
+      this.vals = new Object[links.length];
+    }
+    
+    public Object map(Object arg, Map<String, Object> props) {
+      int no = 0;
+      try {
+        for (; no < links.length; no++) {
+          vals[no] = links[no].map(in(no, arg), props);
+        }
+        return vals[no - 1];
+      } catch (RuntimeException exc) {
+        /* Roll back what is mapped so far. The Ref fails over to unbound. */
+        try {
+          unmap(no - 1, arg, props);
+        } catch (RuntimeException rollback) {
+          /* The original failure is the one to report */
+        }
+        throw exc;
+      }
+    }
+    
+    public void unmap(Object val, Object arg, Map<String, Object> props) {
+      unmap(links.length - 1, arg, props);
+    }
+    
+    /**
+     * Unmap the links from last down to the first one. Every link is unmapped
+     * even if some fail. The first failure is thrown in the end.
+     */
+    private void unmap(int last, Object arg, Map<String, Object> props) {
+      RuntimeException fail = null;
+      
+      for (int no = last; no >= 0; no--) {
+        try {
+          links[no].unmap(vals[no], in(no, arg), props);
+        } catch (RuntimeException exc) {
+          if (fail == null) {
+            fail = exc;
+          }
+        } finally {
+          vals[no] = null;
+        }
+      }
+      
+      if (fail != null) {
+        throw fail;
+      }
+    }
+    
+    protected Object in(int no, Object arg) {
+      return (no == 0) ? arg : vals[no - 1];
+    }
+  }
+  
+  /**
+   * A chain of links that can all follow a change of the attributes. The
+   * links are patched from the first to the last so every link sees the
+   * patched value of the one before.
+   */
+  private static class UpdatableChain extends Chain 
+      implements UpdatableTransformer<Object, Object> {
+    
+    public UpdatableChain(Transformer<Object, Object>[] links) {
+      super(links);
+    }
+    
+    @SuppressWarnings("unchecked")
+    public void update(Object val, Object arg, Map<String, Object> props) {
+      for (int no = 0; no < links.length; no++) {
+        ((UpdatableTransformer<Object, Object>) links[no]).update(vals[no], in(no, arg), props);
+      }
+    }
+  }
+  
+  private final List<Transformer<Object, Object>> links;
 
-  private RefFactoryCombinatorImpl(RefFactory<A, V> fact) {
-    this.fact = fact;
+  private RefFactoryCombinatorImpl(List<Transformer<Object, Object>> links) {
+    this.links = links;
   }
 
-  public RefFactoryCombinatorImpl(final Transformer<A, V> seed) { 
-    this (new RefFactory<A, V>() {
-      public Ref<A, V> ref() {
-        return Refs.ref(seed);
-      }
-    });
+  @SuppressWarnings("unchecked")
+  public RefFactoryCombinatorImpl(Transformer<A, V> seed) { 
+    this.links = new ArrayList<Transformer<Object, Object>>();
+    links.add((Transformer<Object, Object>) (Transformer<?, ?>) seed);
   }
   
-  public <N> RefFactoryCombinator<N, V> from(final Transformer<N, A> prev) {
-    return new RefFactoryCombinatorImpl<N, V>(new RefFactory<N, V>() {
-      public Ref<N, V> ref() {
-        return Refs.from(prev, fact.ref());
-      }
-    });
+  @SuppressWarnings("unchecked")
+  public <N> RefFactoryCombinator<N, V> from(Transformer<N, A> prev) {
+    List<Transformer<Object, Object>> res = new ArrayList<Transformer<Object, Object>>();
+    res.add((Transformer<Object, Object>) (Transformer<?, ?>) prev);
+    res.addAll(links);
+    return new RefFactoryCombinatorImpl<N, V>(res);
   }
 
-  public <N> RefFactoryCombinator<A, N> to(final Transformer<V, N> next) {
-    return new RefFactoryCombinatorImpl<A, N>(new RefFactory<A, N>() {
-      public Ref<A, N> ref() {
-        return Refs.to(fact.ref(), next);
-      }
-    });
+  @SuppressWarnings("unchecked")
+  public <N> RefFactoryCombinator<A, N> to(Transformer<V, N> next) {
+    List<Transformer<Object, Object>> res = new ArrayList<Transformer<Object, Object>>(links);
+    res.add((Transformer<Object, Object>) (Transformer<?, ?>) next);
+    return new RefFactoryCombinatorImpl<A, N>(res);
   }
 
   public RefFactory<A, V> factory() {
-    return fact;
+    return factory(LockPolicy.READ_WRITE);
+  }
+  
+  @SuppressWarnings("unchecked")
+  public RefFactory<A, V> factory(final LockPolicy policy) {
+    final Transformer<Object, Object>[] chain = links.toArray(new Transformer[links.size()]);
+    
+    /* Patching only some of the links would leave the rest with stale values */
+    boolean all = true;
+    for (Transformer<Object, Object> link : chain) {
+      all &= link instanceof UpdatableTransformer;
+    }
+    final boolean updatable = all;
+    
+    return new RefFactory<A, V>() {
+      public Ref<A, V> ref() {
+        /* A single link keeps no state so it needs no Chain */
+        Transformer<?, ?> fact = (chain.length == 1) 
+          ? chain[0] 
+          : updatable ? new UpdatableChain(chain) : new Chain(chain);
+        return Refs.ref((Transformer<A, V>) fact, policy);
+      }
+    };
   }
 }
\ No newline at end of file
@@ -16,10 +16,17 @@
 package org.unseen.proxy.ref;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Todor Boev
@@ -127,19 +134,73 @@ public class RefImpl<A, V> implements Ref<A, V> {
     }
   }
   
+  /** How long to park between checks if the calls in progress have drained */
+  private static final long DRAIN_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+  
   private final Collection<RefListener> listeners = new ConcurrentLinkedQueue<RefListener>();
-  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Collection<BindingListener> bindingListeners = 
+    new ConcurrentLinkedQueue<BindingListener>();
+  private final RefLock lock;
   
   private final Transformer<A, V> factory;
+  
+  /** Thrown at the failed callers or null if each one gets a new exception */
+  private final RefUnboundException failure;
+  /** Handed to the callers instead of the real val() while this Ref is unbound */
+  private final V fallback;
+  private final AtomicLong failures = new AtomicLong();
 
-  private Map<String, Object> props;
-  private A arg;
-  private V val;
+  /* Volatile so the readers that take no lock can validate what they read */
+  private volatile Map<String, Object> props;
+  private volatile A arg;
+  private volatile V val;
+  
+  /*
+   * Volatile because a grace-period unbind that has timed out changes the state
+   * without the write lock.
+   */
+  private volatile StateHandler state = StateHandler.UNBOUND;
+  
+  /** Set while a grace-period unbind waits for the calls in progress to drain */
+  private final AtomicBoolean retired = new AtomicBoolean();
+  /** Calls still in flight when the last grace-period unbind gave up waiting */
+  private volatile int stragglers;
   
-  private StateHandler state = StateHandler.UNBOUND;
+  /** Republished under the write lock on every change of state */
+  private volatile Binding<A, V> binding;
+  
+  /** Parks the callers waiting for this Ref to become available */
+  private final ReentrantLock waiters = new ReentrantLock();
+  private final Condition available = waiters.newCondition();
+  /** Lets publish() skip the signal when nobody waits */
+  private volatile int waiting;
+  
+  private volatile long damping;
+  
+  /** Created on the first attach() */
+  private volatile ConcurrentMap<Object, Object> attachments;
   
   public RefImpl(Transformer<A, V> factory) {
+    this(factory, LockPolicy.READ_WRITE);
+  }
+  
+  public RefImpl(Transformer<A, V> factory, LockPolicy policy) {
+    this(factory, policy, FailPolicy.THROW, null);
+  }
+  
+  /**
+   * @param factory
+   * @param policy
+   * @param fail
+   * @param fallback if not <code>null</code> val() returns this instead of
+   *        failing while the Ref is unbound.
+   */
+  public RefImpl(Transformer<A, V> factory, LockPolicy policy, FailPolicy fail, V fallback) {
     this.factory = factory;
+    this.lock = policy.create();
+    this.failure = fail.create(this);
+    this.fallback = fallback;
+    this.binding = new Binding<A, V>(this, state.state(), null, null, null);
   }
   
   @Override
@@ -153,43 +214,86 @@ public class RefImpl<A, V> implements Ref<A, V> {
   }
   
   public final A arg() {
-    switch (state.state) {
-    case BOUND:
-    case UNBINDING:
-      return arg;
+    for (;;) {
+      int stamp = lock.stamp();
+      boolean available = isAvailable(state);
+      A res = arg;
       
-    default:
-      throw new RefUnboundException(this);
+      if (lock.validate(stamp)) {
+        if (!available) {
+          throw failure();
+        }
+        return res;
+      }
+      Thread.yield();
     }
   }
   
   public final V val() {
-    switch (state.state) {
-    case BOUND:
-    case UNBINDING:
-      return val;
+    for (;;) {
+      int stamp = lock.stamp();
+      boolean available = isAvailable(state);
+      V res = val;
       
-    default:
-      throw new RefUnboundException(this);
+      if (lock.validate(stamp)) {
+        return available ? res : unbound();
+      }
+      Thread.yield();
     }
   }
   
   public final Map<String, Object> attributes() {
     lock.readLock().lock();
     try {
-      switch (state.state) {
-      case BOUND:
-      case UNBINDING:
-        return Collections.unmodifiableMap(props);
+      for (;;) {
+        int stamp = lock.stamp();
+        boolean available = isAvailable(state);
+        Map<String, Object> res = props;
         
-      default:
-        throw new RefUnboundException(this);
+        if (lock.validate(stamp)) {
+          if (!available) {
+            throw failure();
+          }
+          return Collections.unmodifiableMap(res);
+        }
+        Thread.yield();
       }
     } finally {
       lock.readLock().unlock();
     }
   }
   
+  private static boolean isAvailable(StateHandler state) {
+    switch (state.state) {
+    case BOUND:
+    case UNBINDING:
+      return true;
+      
+    default:
+      return false;
+    }
+  }
+  
+  public final Object attachment(Object key) {
+    ConcurrentMap<Object, Object> map = attachments;
+    return (map != null) ? map.get(key) : null;
+  }
+  
+  public final Object attach(Object key, Object val) {
+    ConcurrentMap<Object, Object> map = attachments;
+    if (map == null) {
+      synchronized (this) {
+        map = attachments;
+        if (map == null) {
+          attachments = map = new ConcurrentHashMap<Object, Object>(4);
+        }
+      }
+    }
+    
+    Object res = map.putIfAbsent(key, val);
+    return (res != null) ? res : val;
+  }
+  
   public final void addListener(RefListener listener) {
     listeners.add(listener);
   }
@@ -197,6 +301,14 @@ public class RefImpl<A, V> implements Ref<A, V> {
   public final void removeListener(RefListener listener) {
     listeners.remove(listener);
   }
+  
+  public final void addBindingListener(BindingListener listener) {
+    bindingListeners.add(listener);
+  }
+  
+  public final void removeBindingListener(BindingListener listener) {
+    bindingListeners.remove(listener);
+  }
 
   public final State state() {
     lock.readLock().lock();
@@ -210,6 +322,77 @@ public class RefImpl<A, V> implements Ref<A, V> {
   public final Lock lock() {
     return lock.readLock();
   }
+  
+  public final Binding<A, V> binding() {
+    return binding;
+  }
+  
+  public final int inFlight() {
+    return lock.readers();
+  }
+  
+  public final int stragglers() {
+    return stragglers;
+  }
+  
+  public final boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+    if (binding.isAvailable()) {
+      return true;
+    }
+    
+    long nanos = unit.toNanos(timeout);
+    waiters.lock();
+    waiting++;
+    try {
+      while (!binding.isAvailable()) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = available.awaitNanos(nanos);
+      }
+      return true;
+    } finally {
+      waiting--;
+      waiters.unlock();
+    }
+  }
+  
+  public final void damp(long timeout, TimeUnit unit) {
+    this.damping = unit.toNanos(timeout);
+  }
+  
+  public final long damping() {
+    return damping;
+  }
+  
+  public final long failures() {
+    return failures.get();
+  }
+  
+  /**
+   * Called in place of returning the val() of an unbound Ref.
+   * 
+   * @return the fallback if there is one.
+   * @throws RefUnboundException if there is no fallback.
+   */
+  final V unbound() {
+    if (fallback != null) {
+      failures.incrementAndGet();
+      return fallback;
+    }
+    throw failure();
+  }
+  
+  /**
+   * Counts a failed call. Never touches the lock or the state so a storm of
+   * failing callers does not slow down the transition that will end it.
+   * 
+   * @return the exception the caller must throw.
+   */
+  final RefUnboundException failure() {
+    failures.incrementAndGet();
+    return (failure != null) ? failure : new RefUnboundException(this);
+  }
 
   public final void bind(A arg, Map<String, Object> props) {
     toState(StateHandler.BINDING);
@@ -231,6 +414,7 @@ public class RefImpl<A, V> implements Ref<A, V> {
     }
   }
   
+  @SuppressWarnings("unchecked")
   public final void update(A arg, Map<String, Object> props) {
     if (arg == null && props == null) {
       throw new RefException(this + ": Must update something");
@@ -239,12 +423,21 @@ public class RefImpl<A, V> implements Ref<A, V> {
     toState(StateHandler.UPDATING);
     
     if (props != null) {
-      /* Defensive copy */
-      this.props = new HashMap<String, Object>();
-      this.props.putAll(props);
+      /* An update comes on every attribute change so the map is taken as is */
+      this.props = props;
     }
     
-    if (arg != null) {
+    boolean patch = factory instanceof UpdatableTransformer && props != null;
+    
+    if (patch && (arg == null || arg == this.arg)) {
+      /* Only the attributes changed - let the factory patch the value in place */
+      try {
+        ((UpdatableTransformer<A, V>) factory).update(val, this.arg, this.props);
+      } catch (Exception exc) {
+        failover();
+        throw new RefException(this + ": Update failed", exc);
+      }
+    } else if (arg != null) {
       try {
         factory.unmap(val, this.arg, props);
         this.arg = arg;
@@ -260,42 +453,107 @@ public class RefImpl<A, V> implements Ref<A, V> {
   }
 
   public final void unbind() {
-    if (!tryState(StateHandler.UNBINDING)) {
+    unbind(true);
+  }
+  
+  public final void unbind(Executor exec, final long timeout, final TimeUnit unit) {
+    lock.readLock().lock();
+    try {
+      if (!state.canTransit(StateHandler.UNBINDING) || !retired.compareAndSet(false, true)) {
+        return;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    
+    /* From now on new callers see this Ref as unbound */
+    publish(new Binding<A, V>(this, State.UNBOUND, null, null, null));
+    
+    exec.execute(new Runnable() {
+      public void run() {
+        drain(timeout, unit);
+      }
+    });
+  }
+  
+  /**
+   * Waits for the calls in progress to release lock() and than unbinds. Polls
+   * with tryLock() rather than waiting on the write lock because a queued
+   * writer would block the new callers that must fail right away.
+   * 
+   * @param timeout
+   * @param unit
+   */
+  private void drain(long timeout, TimeUnit unit) {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    
+    if (!lock.counting()) {
+      /* Can't tell when the callers are done - give them the whole grace period */
+      long left;
+      while ((left = deadline - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(left);
+      }
+    }
+    
+    boolean drained;
+    while (!(drained = lock.writeLock().tryLock())) {
+      if (System.nanoTime() - deadline >= 0) {
+        break;
+      }
+      LockSupport.parkNanos(DRAIN_PARK);
+    }
+    
+    if (drained) {
+      lock.writeLock().unlock();
+      stragglers = 0;
+    } else {
+      /* Stop waiting - the stragglers keep using the val they already have */
+      stragglers = inFlight();
+    }
+    
+    try {
+      unbind(drained);
+    } finally {
+      retired.set(false);
+    }
+  }
+  
+  /**
+   * @param exclusive if <code>false</code> the state changes without waiting
+   *        for the calls in progress to release lock().
+   */
+  private void unbind(boolean exclusive) {
+    if (!transition(StateHandler.UNBINDING, false, exclusive)) {
       return;
     }
     
     try {
       factory.unmap(val, arg, props);
     } finally {
-      this.val = null;
-      this.arg = null;
-      this.props = Collections.emptyMap();
-      
-      toState(StateHandler.UNBOUND);
+      transition(StateHandler.UNBOUND, true, exclusive);
     }
   }
   
   private void toState(StateHandler next) {
-    transition(next, true);
-  }
-  
-  private boolean tryState(StateHandler next) {
-    return transition(next, false);
+    transition(next, true, true);
   }
   
   private void failover() {
     lock.writeLock().lock();
     try {
       state = state.failover();
+      publish();
     } finally {
       lock.writeLock().unlock();
     }
   }
   
-  private boolean transition(StateHandler next, boolean crash) {
+  private boolean transition(StateHandler next, boolean crash, boolean exclusive) {
     StateHandler prev = null;
     
-    lock.writeLock().lock();
+    if (exclusive) {
+      lock.writeLock().lock();
+    }
     try {
       if (!state.canTransit(next)) {
         if (crash) {
@@ -305,12 +563,60 @@ public class RefImpl<A, V> implements Ref<A, V> {
       }
       prev = state;
       state = next;
+      
+      if (next == StateHandler.UNBOUND) {
+        /* Cleared along with the state so a reader never sees one without the other */
+        this.val = null;
+        this.arg = null;
+        this.props = Collections.emptyMap();
+      }
+      
+      publish();
     } finally {
-      lock.writeLock().unlock();
+      if (exclusive) {
+        lock.writeLock().unlock();
+      }
     }
     
     prev.dispatchOnExit(listeners);
     state.dispatchOnEntry(listeners);
     return true;
   }
+  
+  /**
+   * Must be called after every change of state.
+   */
+  private void publish() {
+    if (retired.get()) {
+      /* Keep new callers away until the grace-period unbind completes */
+      publish(new Binding<A, V>(this, State.UNBOUND, null, null, null));
+    } else {
+      publish(new Binding<A, V>(this, state.state(), arg, val, props));
+    }
+  }
+  
+  /**
+   * @param next
+   */
+  private void publish(Binding<A, V> next) {
+    binding = next;
+    
+    /* Both binding and waiting are volatile so a waiter can't slip between */
+    if (waiting > 0 && next.isAvailable()) {
+      waiters.lock();
+      try {
+        available.signalAll();
+      } finally {
+        waiters.unlock();
+      }
+    }
+    
+    for (BindingListener l : bindingListeners) {
+      try {
+        l.published(next);
+      } catch (Throwable thr) {
+        thr.printStackTrace();
+      }
+    }
+  }
 }
@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.ref;
+
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * The lock behind a {@link RefImpl}. The read lock is handed to the callers of
+ * {@link Ref#lock()}. The write lock guards the state transitions.
+ * 
+ * @author Todor Boev
+ */
+interface RefLock extends ReadWriteLock {
+  /**
+   * @return the number of read lock holds currently taken or 0 if this lock
+   *         does not track it's readers.
+   */
+  int readers();
+  
+  /**
+   * @return <code>false</code> if the readers are not counted and the write
+   *         lock is granted while they are still running.
+   */
+  boolean counting();
+  
+  /**
+   * Starts a read of the state of a Ref made without the read lock.
+   * 
+   * @return a stamp for {@link #validate(int)}.
+   */
+  int stamp();
+  
+  /**
+   * @param stamp
+   * @return <code>true</code> if no write lock was held since stamp was taken
+   *         so the read is consistent. Otherwise the read must be repeated.
+   */
+  boolean validate(int stamp);
+}
@@ -15,7 +15,15 @@
  */
 package org.unseen.proxy.ref;
 
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import org.unseen.proxy.gen.Proxy;
 
 /**
  * {@link Ref} is a monad-like thing that adds state tracking and result storage
@@ -25,6 +33,47 @@ import java.util.Map;
  * @author Todor Boev
  */
 public class Refs {
+  /** Serializes the locking of Refs that can't be ordered by identity */
+  private static final Object TIE_LOCK = new Object();
+  
+  /** Answers every call with the default value of the return type */
+  private static final InvocationHandler DEFAULTS = new InvocationHandler() {
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      if (method.getDeclaringClass() == Object.class) {
+        String name = method.getName();
+        if ("equals".equals(name)) {
+          return proxy == args[0];
+        }
+        if ("hashCode".equals(name)) {
+          return System.identityHashCode(proxy);
+        }
+        return "Defaults(" + proxy.getClass().getInterfaces()[0].getName() + ")";
+      }
+      
+      Class<?> type = method.getReturnType();
+      if (!type.isPrimitive() || type == void.class) {
+        return null;
+      }
+      if (type == boolean.class) {
+        return false;
+      }
+      if (type == char.class) {
+        return (char) 0;
+      }
+      /* Let Array convert a zero to the right wrapper */
+      Object res = Array.newInstance(type, 1);
+      return Array.get(res, 0);
+    }
+  };
+  
+  private static final Comparator<Ref<?, ?>> IDENTITY_ORDER = new Comparator<Ref<?, ?>>() {
+    public int compare(Ref<?, ?> r1, Ref<?, ?> r2) {
+      int h1 = System.identityHashCode(r1);
+      int h2 = System.identityHashCode(r2);
+      return h1 < h2 ? -1 : (h1 == h2 ? 0 : 1);
+    }
+  };
+  
   /**
    * A function to lift an ObjectFactory into the Ref monad.
    */
@@ -32,6 +81,49 @@ public class Refs {
     return new RefImpl<A, B>(fact);
   }
 
+  /**
+   * Lift an ObjectFactory into the Ref monad and select how the resulting Ref
+   * is locked.
+   */
+  public static <A, B> Ref<A, B> ref(Transformer<A, B> fact, LockPolicy policy) {
+    return new RefImpl<A, B>(fact, policy);
+  }
+
+  /**
+   * Lift an ObjectFactory into the Ref monad and select how the resulting Ref
+   * is locked and how it fails while it is unbound.
+   */
+  public static <A, B> Ref<A, B> ref(Transformer<A, B> fact, LockPolicy policy, FailPolicy fail) {
+    return new RefImpl<A, B>(fact, policy, fail, null);
+  }
+
+  /**
+   * Like {@link #ref(Transformer, LockPolicy, FailPolicy)} but while the
+   * resulting Ref is unbound it's callers get fallback instead of an exception.
+   * 
+   * @see #defaults(Class)
+   */
+  public static <A, B> Ref<A, B> ref(Transformer<A, B> fact, LockPolicy policy, FailPolicy fail,
+      B fallback) {
+    
+    if (fallback == null) {
+      throw new NullPointerException();
+    }
+    
+    return new RefImpl<A, B>(fact, policy, fail, fallback);
+  }
+
+  /**
+   * @param <B>
+   * @param type
+   * @return an implementation of type whose methods do nothing and return 0,
+   *         false or null. For use as a fallback.
+   */
+  public static <B> B defaults(Class<B> type) {
+    return type.cast(java.lang.reflect.Proxy.newProxyInstance(type.getClassLoader(),
+        new Class<?>[] {type}, DEFAULTS));
+  }
+
   /**
    * @param <A>
    * @param <B>
@@ -53,6 +145,24 @@ public class Refs {
    * @return
    */
   public static <A, B, C> Ref<A, C> to(final Ref<A, B> ref, final Transformer<B, C> fact) {
+    return to(ref, fact, LockPolicy.READ_WRITE);
+  }
+
+  /**
+   * Change the output of a Ref from B to C. The input remains A. The resulting
+   * Ref is locked according to policy.
+   * 
+   * @param <A>
+   * @param <B>
+   * @param <C>
+   * @param ref
+   * @param fact
+   * @param policy
+   * @return
+   */
+  public static <A, B, C> Ref<A, C> to(final Ref<A, B> ref, final Transformer<B, C> fact,
+      LockPolicy policy) {
+    
     if (ref == null) {
       throw new NullPointerException();
     }
@@ -71,7 +181,7 @@ public class Refs {
         fact.unmap(val, ref.val(), props);
         ref.unbind();
       }
-    });
+    }, policy);
   }
 
   /**
@@ -85,6 +195,24 @@ public class Refs {
    * @return
    */
   public static <A, B, C> Ref<C, A> from(final Transformer<C, B> fact, final Ref<B, A> ref) {
+    return from(fact, ref, LockPolicy.READ_WRITE);
+  }
+
+  /**
+   * Change the input of a ref from B to C. The output remains A. The resulting
+   * Ref is locked according to policy.
+   * 
+   * @param <A>
+   * @param <B>
+   * @param <C>
+   * @param ref
+   * @param fact
+   * @param policy
+   * @return
+   */
+  public static <A, B, C> Ref<C, A> from(final Transformer<C, B> fact, final Ref<B, A> ref,
+      LockPolicy policy) {
+    
     if (ref == null) {
       throw new NullPointerException();
     }
@@ -104,7 +232,7 @@ public class Refs {
         ref.unbind();
         fact.unmap(b, arg, props);
       }
-    });
+    }, policy);
   }
 
   /**
@@ -156,6 +284,121 @@ public class Refs {
     };
   }
 
+  /**
+   * Runs fn with the delegate of ref. The Ref can not be unbound while fn runs
+   * so fn can call the delegate many times without paying for the proxy on
+   * every call.
+   * 
+   * @param <V>
+   * @param <R>
+   * @param ref
+   * @param fn
+   * @return the result of fn.
+   * @throws RefUnboundException if ref is not bound.
+   */
+  public static <V, R> R withBound(Ref<?, V> ref, Pinned<? super V, R> fn) {
+    Lock lock = ref.lock();
+    lock.lock();
+    try {
+      return fn.run(ref.binding().val());
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Runs fn with the delegate behind proxy.
+   * 
+   * @param <V>
+   * @param <R>
+   * @param proxy
+   * @param fn
+   * @return the result of fn.
+   * @throws RefUnboundException if the Ref of proxy is not bound.
+   */
+  @SuppressWarnings("unchecked")
+  public static <V, R> R withBound(V proxy, Pinned<? super V, R> fn) {
+    return withBound(((Proxy<?, V>) proxy).proxyControl(), fn);
+  }
+  
+  /**
+   * Runs fn with a consistent snapshot of the delegates of several Refs. The
+   * Refs are locked in a global order so two threads that pin the same Refs in
+   * different order can't deadlock.
+   * 
+   * @param <R>
+   * @param fn receives the delegates in the order of args.
+   * @param args Refs or proxies.
+   * @return the result of fn.
+   * @throws RefUnboundException if any of the Refs is not bound.
+   */
+  public static <R> R withBound(Pinned<Object[], R> fn, Object... args) {
+    return withBound(group(args), fn);
+  }
+  
+  /**
+   * @param args Refs or proxies.
+   * @return a group to pin args over and over with
+   *         {@link #withBound(Pinned.Group, Pinned)}.
+   */
+  public static Pinned.Group group(Object... args) {
+    Ref<?, ?>[] refs = new Ref<?, ?>[args.length];
+    for (int i = 0; i < args.length; i++) {
+      refs[i] = (args[i] instanceof Ref) ? (Ref<?, ?>) args[i] : ((Proxy<?, ?>) args[i]).proxyControl();
+    }
+    
+    Ref<?, ?>[] order = refs.clone();
+    Arrays.sort(order, IDENTITY_ORDER);
+    
+    boolean tie = false;
+    for (int i = 1; i < order.length; i++) {
+      tie |= order[i] != order[i - 1] && IDENTITY_ORDER.compare(order[i], order[i - 1]) == 0;
+    }
+    
+    return new Pinned.Group(refs, order, tie);
+  }
+  
+  /**
+   * Same as {@link #withBound(Pinned, Object...)} without the allocations.
+   * 
+   * @param <R>
+   * @param group
+   * @param fn receives the delegates in the order the group was built with.
+   *        The array belongs to the group and is cleared once fn returns.
+   * @return the result of fn.
+   * @throws RefUnboundException if any of the Refs is not bound.
+   */
+  public static <R> R withBound(Pinned.Group group, Pinned<Object[], R> fn) {
+    Ref<?, ?>[] order = group.order;
+    
+    if (group.tie) {
+      synchronized (TIE_LOCK) {
+        lock(order);
+      }
+    } else {
+      lock(order);
+    }
+    
+    Object[] vals = group.vals;
+    try {
+      for (int i = 0; i < vals.length; i++) {
+        vals[i] = group.refs[i].binding().val();
+      }
+      return fn.run(vals);
+    } finally {
+      Arrays.fill(vals, null);
+      for (int i = order.length - 1; i >= 0; i--) {
+        order[i].lock().unlock();
+      }
+    }
+  }
+  
+  private static void lock(Ref<?, ?>[] order) {
+    for (Ref<?, ?> ref : order) {
+      ref.lock().lock();
+    }
+  }
+  
   /**
    * Can be used by the user to raise a signal directly by calling bind/unbind.
    * 
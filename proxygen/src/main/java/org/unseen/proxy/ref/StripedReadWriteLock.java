@@ -0,0 +1,306 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.ref;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A read-write lock for read-mostly Refs. Every reader increments a counter on
+ * a stripe picked by it's thread so readers on different cores touch different
+ * cache lines. A writer raises a flag and waits for all stripes to empty.
+ * Readers that see the flag back off and queue on the writer's mutex.
+ *
+ * The read lock is reentrant and can be taken by the writer. The write lock is
+ * reentrant but a reader can not upgrade to a writer.
+ *
+ * @author Todor Boev
+ */
+class StripedReadWriteLock implements RefLock {
+  /** Spread the stripes on different cache lines */
+  private static final int PAD = 16;
+  private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+  /** How long a writer parks between checks if the readers have left */
+  private static final long WRITER_PARK = TimeUnit.MICROSECONDS.toNanos(50);
+
+  /** 
+   * The read holds of every thread. One for all locks so the threads don't
+   * collect an entry for every lock they ever touched.
+   */
+  private static final ThreadLocal<Holds> HOLDS = new ThreadLocal<Holds>() {
+    @Override
+    protected Holds initialValue() {
+      return new Holds(stripe(Thread.currentThread()));
+    }
+  };
+  
+  private final AtomicIntegerArray stripes = new AtomicIntegerArray(STRIPES * PAD);
+  private final ReentrantLock writer = new ReentrantLock();
+  private volatile boolean writing;
+
+  private final Lock readLock = new AbstractLock() {
+    public void lock() {
+      Holds holds = HOLDS.get();
+      if (holds.reenter(StripedReadWriteLock.this)) {
+        return;
+      }
+
+      int slot = holds.stripe;
+      for (;;) {
+        stripes.incrementAndGet(slot);
+        if (!writing || writer.isHeldByCurrentThread()) {
+          holds.enter(StripedReadWriteLock.this);
+          return;
+        }
+        stripes.decrementAndGet(slot);
+
+        /* Wait for the writer to finish */
+        writer.lock();
+        writer.unlock();
+      }
+    }
+
+    public boolean tryLock() {
+      Holds holds = HOLDS.get();
+      if (holds.reenter(StripedReadWriteLock.this)) {
+        return true;
+      }
+
+      int slot = holds.stripe;
+      stripes.incrementAndGet(slot);
+      if (!writing || writer.isHeldByCurrentThread()) {
+        holds.enter(StripedReadWriteLock.this);
+        return true;
+      }
+      stripes.decrementAndGet(slot);
+      return false;
+    }
+
+    public void unlock() {
+      Holds holds = HOLDS.get();
+      int left = holds.exit(StripedReadWriteLock.this);
+      if (left < 0) {
+        throw new IllegalMonitorStateException();
+      }
+
+      if (left == 0) {
+        stripes.decrementAndGet(holds.stripe);
+      }
+    }
+  };
+
+  private final Lock writeLock = new AbstractLock() {
+    public void lock() {
+      writer.lock();
+      if (writer.getHoldCount() > 1) {
+        return;
+      }
+
+      writing = true;
+      while (readers() > 0) {
+        LockSupport.parkNanos(WRITER_PARK);
+      }
+    }
+
+    public boolean tryLock() {
+      if (!writer.tryLock()) {
+        return false;
+      }
+      if (writer.getHoldCount() > 1) {
+        return true;
+      }
+
+      writing = true;
+      if (readers() > 0) {
+        writing = false;
+        writer.unlock();
+        return false;
+      }
+      return true;
+    }
+
+    public void unlock() {
+      if (writer.getHoldCount() == 1) {
+        writing = false;
+      }
+      writer.unlock();
+    }
+  };
+
+  public Lock readLock() {
+    return readLock;
+  }
+
+  public Lock writeLock() {
+    return writeLock;
+  }
+
+  public int readers() {
+    int sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += stripes.get(i * PAD);
+    }
+    return sum;
+  }
+  
+  public boolean counting() {
+    return true;
+  }
+  
+  public int stamp() {
+    return 0;
+  }
+  
+  public boolean validate(int stamp) {
+    return true;
+  }
+
+  /**
+   * @param thread
+   * @return
+   */
+  private static int stripe(Thread thread) {
+    long id = thread.getId();
+    int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return ((hash >>> 16) & (STRIPES - 1)) * PAD;
+  }
+
+  /**
+   * @param cpus
+   * @return the smallest power of two that gives every core two stripes.
+   */
+  private static int stripes(int cpus) {
+    int res = 1;
+    while (res < cpus * 2) {
+      res <<= 1;
+    }
+    return res;
+  }
+
+  /**
+   * The read locks a thread holds right now and how many times it holds each.
+   * A thread holds few locks at a time so they are simply scanned.
+   */
+  private static final class Holds {
+    /** Picked from the thread id */
+    final int stripe;
+    
+    private StripedReadWriteLock[] locks = new StripedReadWriteLock[4];
+    private int[] counts = new int[4];
+    private int size;
+    
+    public Holds(int stripe) {
+      this.stripe = stripe;
+    }
+    
+    /**
+     * @return true if lock was held already and was taken once more.
+     */
+    public boolean reenter(StripedReadWriteLock lock) {
+      int i = indexOf(lock);
+      if (i < 0) {
+        return false;
+      }
+      counts[i]++;
+      return true;
+    }
+    
+    /**
+     * Record the first hold of lock.
+     */
+    public void enter(StripedReadWriteLock lock) {
+      if (size == locks.length) {
+        StripedReadWriteLock[] newLocks = new StripedReadWriteLock[size * 2];
+        System.arraycopy(locks, 0, newLocks, 0, size);
+        locks = newLocks;
+        
+        int[] newCounts = new int[size * 2];
+        System.arraycopy(counts, 0, newCounts, 0, size);
+        counts = newCounts;
+      }
+      
+      locks[size] = lock;
+      counts[size] = 1;
+      size++;
+    }
+    
+    /**
+     * @return how many holds of lock are left or -1 if it was not held.
+     */
+    public int exit(StripedReadWriteLock lock) {
+      int i = indexOf(lock);
+      if (i < 0) {
+        return -1;
+      }
+      
+      int left = --counts[i];
+      if (left == 0) {
+        /* Don't keep the lock alive */
+        size--;
+        locks[i] = locks[size];
+        counts[i] = counts[size];
+        locks[size] = null;
+      }
+      return left;
+    }
+    
+    private int indexOf(StripedReadWriteLock lock) {
+      for (int i = size - 1; i >= 0; i--) {
+        if (locks[i] == lock) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+  
+  /**
+   * The untimed and interruptible variants are built on top of lock() and
+   * tryLock(). Like the read lock of a ReentrantReadWriteLock neither lock
+   * supports conditions. A Ref never waits on them.
+   */
+  private static abstract class AbstractLock implements Lock {
+    public void lockInterruptibly() throws InterruptedException {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      lock();
+    }
+
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(time);
+      while (!tryLock()) {
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        if (System.nanoTime() - deadline >= 0) {
+          return false;
+        }
+        LockSupport.parkNanos(WRITER_PARK);
+      }
+      return true;
+    }
+
+    public Condition newCondition() {
+      throw new UnsupportedOperationException("A striped lock has no conditions");
+    }
+  }
+}
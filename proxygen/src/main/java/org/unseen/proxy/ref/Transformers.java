@@ -18,14 +18,20 @@ package org.unseen.proxy.ref;
 import java.util.Map;
 
 /**
+ * The transformers here keep no state of their own so they follow a change of
+ * the attributes with a no-op update.
+ * 
  * @author Todor Boev
  */
 public class Transformers {
   public static <A, V> Transformer<A, V> constant(final V c) { 
-    return new TransformerAdapter<A, V>() {
+    return new UpdatableTransformerAdapter<A, V>() {
       public V map(A input, Map<String, Object> props){
         return c;
       }
+      
+      public void update(V val, A arg, Map<String, Object> props) {
+      }
     };
   }
   
@@ -34,10 +40,13 @@ public class Transformers {
   }
   
   private static final Transformer<Void, Void> NOTHING = 
-    new TransformerAdapter<Void, Void>() {
+    new UpdatableTransformerAdapter<Void, Void>() {
       public Void map(Void arg, Map<String, Object> props) {
         return null;
       }
+      
+      public void update(Void val, Void arg, Map<String, Object> props) {
+      }
     };
   
   @SuppressWarnings("unchecked")
@@ -46,9 +55,12 @@ public class Transformers {
   }
   
   private static final Transformer<Object, Object> IDENTITY = 
-    new TransformerAdapter<Object, Object>() {
+    new UpdatableTransformerAdapter<Object, Object>() {
       public Object map(Object arg, Map<String, Object> props) {
         return arg;
       }
+      
+      public void update(Object val, Object arg, Map<String, Object> props) {
+      }
     }; 
 }
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy.ref;
+
+import java.util.Map;
+
+/**
+ * A {@link Transformer} that can follow a change of the attributes without
+ * being unmapped and mapped again. {@link Ref#update(Object, Map)} calls it when
+ * only the attributes of the argument change.
+ * 
+ * @author Todor Boev
+ * 
+ * @param <A>
+ * @param <V>
+ */
+public interface UpdatableTransformer<A, V> extends Transformer<A, V> {
+  /**
+   * @param val the result of the last {@link #map} call. Patch it in place.
+   * @param arg the argument it was mapped from.
+   * @param attrs the new attributes.
+   */
+  void update(V val, A arg, Map<String, Object> attrs);
+}
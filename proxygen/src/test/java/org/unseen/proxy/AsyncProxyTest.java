@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.unseen.proxy.gen.Async;
+import org.unseen.proxy.gen.Proxy;
+import org.unseen.proxy.gen.ProxyFactory;
+import org.unseen.proxy.impl.ProxyClassLoader;
+import org.unseen.proxy.impl.ProxyFactoryImpl;
+import org.unseen.proxy.ref.Ref;
+import org.unseen.proxy.ref.RefUnboundException;
+import org.unseen.proxy.ref.Refs;
+import org.unseen.proxy.ref.Transformers;
+
+/**
+ * @author Todor Boev
+ */
+public class AsyncProxyTest extends TestCase {
+  public interface Calc {
+    int add(int a, int b);
+
+    long div(long a, long b);
+
+    void reset();
+  }
+
+  @Async(Calc.class)
+  public interface CalcAsync {
+    Future<Integer> add(int a, int b);
+
+    Future<Long> div(long a, long b);
+
+    Future<?> reset();
+  }
+
+  public static class CalcImpl implements Calc {
+    private volatile Thread caller;
+
+    public int add(int a, int b) {
+      caller = Thread.currentThread();
+      return a + b;
+    }
+
+    public long div(long a, long b) {
+      return a / b;
+    }
+
+    public void reset() {
+      caller = null;
+    }
+  }
+
+  private Ref<Calc, Calc> ref;
+  private ProxyFactory fact;
+
+  @Override
+  protected void setUp() {
+    ref = Refs.ref(Transformers.<Calc>identity());
+    fact = new ProxyFactoryImpl(new ProxyClassLoader(AsyncProxyTest.class.getClassLoader()));
+  }
+
+  /**
+   *
+   */
+  public void testCalls() throws Exception {
+    CalcImpl impl = new CalcImpl();
+    ref.bind(impl, null);
+
+    CalcAsync calc = fact.async(CalcAsync.class, ref, null);
+    assertSame(ref, ((Proxy) calc).proxyControl());
+
+    assertEquals(Integer.valueOf(5), calc.add(2, 3).get());
+    assertNotNull(impl.caller);
+    assertNotSame(Thread.currentThread(), impl.caller);
+
+    assertNull(calc.reset().get());
+    assertNull(impl.caller);
+
+    try {
+      calc.div(1, 0).get();
+      fail();
+    } catch (ExecutionException exc) {
+      assertTrue(exc.getCause() instanceof ArithmeticException);
+    }
+  }
+
+  /**
+   *
+   */
+  public void testExecutor() throws Exception {
+    CalcImpl impl = new CalcImpl();
+    ref.bind(impl, null);
+
+    /* Run in the caller */
+    CalcAsync calc = fact.async(CalcAsync.class, ref, new Executor() {
+      public void execute(Runnable command) {
+        command.run();
+      }
+    });
+
+    Future<Long> res = calc.div(10, 2);
+    assertTrue(res.isDone());
+    assertEquals(Long.valueOf(5), res.get());
+
+    calc.add(1, 1);
+    assertSame(Thread.currentThread(), impl.caller);
+  }
+
+  /**
+   *
+   */
+  public void testUnbound() throws Exception {
+    CalcAsync calc = fact.async(CalcAsync.class, ref, null);
+
+    try {
+      calc.add(1, 2);
+      fail();
+    } catch (RefUnboundException exc) {
+      assertSame(ref, exc.ref());
+    }
+
+    ref.bind(new CalcImpl(), null);
+    assertEquals(Integer.valueOf(3), calc.add(1, 2).get());
+  }
+}
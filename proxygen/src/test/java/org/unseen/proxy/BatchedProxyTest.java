@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.unseen.proxy.gen.Batched;
+import org.unseen.proxy.gen.ProxyFactory;
+import org.unseen.proxy.gen.ProxyMode;
+import org.unseen.proxy.impl.ProxyClassLoader;
+import org.unseen.proxy.impl.ProxyFactoryImpl;
+import org.unseen.proxy.ref.Ref;
+import org.unseen.proxy.ref.RefUnboundException;
+import org.unseen.proxy.ref.Refs;
+import org.unseen.proxy.ref.Transformers;
+
+/**
+ * @author Todor Boev
+ */
+public class BatchedProxyTest extends TestCase {
+  public interface Sink {
+    void log(int event);
+
+    int size();
+  }
+
+  @Batched(capacity = 1, overflow = Batched.Overflow.DROP)
+  public interface TinySink extends Sink {
+  }
+
+  public static class SinkImpl implements TinySink {
+    private final List<Integer> events = Collections.synchronizedList(new ArrayList<Integer>());
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release;
+    private volatile Thread caller;
+
+    public SinkImpl(int hold) {
+      this.release = new CountDownLatch(hold);
+    }
+
+    public void log(int event) {
+      if (event < 0) {
+        throw new IllegalArgumentException("Negative event " + event);
+      }
+      
+      caller = Thread.currentThread();
+      entered.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException exc) {
+        Thread.currentThread().interrupt();
+      }
+      events.add(event);
+    }
+
+    public int size() {
+      return events.size();
+    }
+  }
+
+  private ProxyFactory fact;
+
+  @Override
+  protected void setUp() {
+    fact = new ProxyFactoryImpl(new ProxyClassLoader(BatchedProxyTest.class.getClassLoader()),
+        ProxyMode.BATCHED);
+  }
+
+  /**
+   *
+   */
+  public void testBatches() throws Exception {
+    Ref<Sink, Sink> ref = Refs.ref(Transformers.<Sink>identity());
+    SinkImpl impl = new SinkImpl(0);
+    ref.bind(impl, null);
+    Sink sink = fact.proxy(Sink.class, ref);
+
+    for (int i = 0; i < 1000; i++) {
+      sink.log(i);
+    }
+    assertTrue(impl.entered.await(10, TimeUnit.SECONDS));
+    assertNotSame(Thread.currentThread(), impl.caller);
+
+    /* Whatever is still queued is delivered before the service goes away */
+    ref.unbind();
+    assertEquals(1000, impl.events.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(Integer.valueOf(i), impl.events.get(i));
+    }
+
+    try {
+      sink.log(0);
+      fail();
+    } catch (RefUnboundException exc) {
+      assertSame(ref, exc.ref());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testOverflow() throws Exception {
+    Ref<TinySink, TinySink> ref = Refs.ref(Transformers.<TinySink>identity());
+    SinkImpl impl = new SinkImpl(1);
+    ref.bind(impl, null);
+    Sink sink = fact.proxy(TinySink.class, ref);
+
+    /* Keep the drain busy with the first event so the second fills the queue */
+    sink.log(1);
+    assertTrue(impl.entered.await(10, TimeUnit.SECONDS));
+    sink.log(2);
+    sink.log(3);
+    assertEquals(0, sink.size());
+
+    impl.release.countDown();
+    ref.unbind();
+    assertEquals(2, impl.events.size());
+    assertEquals(Integer.valueOf(1), impl.events.get(0));
+    assertEquals(Integer.valueOf(2), impl.events.get(1));
+  }
+
+  /**
+   * The calls queued before a grace-period unbind reach the service.
+   */
+  public void testGraceUnbind() throws Exception {
+    Ref<Sink, Sink> ref = Refs.ref(Transformers.<Sink>identity());
+    SinkImpl impl = new SinkImpl(1);
+    ref.bind(impl, null);
+    Sink sink = fact.proxy(Sink.class, ref);
+
+    sink.log(1);
+    assertTrue(impl.entered.await(10, TimeUnit.SECONDS));
+    sink.log(2);
+
+    ref.unbind(new Executor() {
+      public void execute(Runnable command) {
+        new Thread(command).start();
+      }
+    }, 10, TimeUnit.SECONDS);
+    
+    try {
+      sink.log(3);
+      fail();
+    } catch (RefUnboundException exc) {
+      assertSame(ref, exc.ref());
+    }
+
+    impl.release.countDown();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (ref.state() != Ref.State.UNBOUND && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(Ref.State.UNBOUND, ref.state());
+    assertEquals(2, impl.events.size());
+    assertEquals(Integer.valueOf(2), impl.events.get(1));
+  }
+
+  /**
+   * All proxies of a class over a Ref share the queue. The failures of the
+   * queued calls are reported to the uncaught exception handler.
+   */
+  public void testSharedQueue() throws Exception {
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    Thread.UncaughtExceptionHandler prev = Thread.getDefaultUncaughtExceptionHandler();
+    Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+      public void uncaughtException(Thread t, Throwable e) {
+        failures.add(e);
+      }
+    });
+    
+    try {
+      Ref<Sink, Sink> ref = Refs.ref(Transformers.<Sink>identity());
+      SinkImpl impl = new SinkImpl(0);
+      ref.bind(impl, null);
+      Sink first = fact.proxy(Sink.class, ref);
+      Sink second = fact.proxy(Sink.class, ref);
+  
+      for (int i = 0; i < 100; i++) {
+        first.log(2 * i);
+        second.log(2 * i + 1);
+      }
+      first.log(-1);
+  
+      ref.unbind();
+      assertEquals(200, impl.events.size());
+      for (int i = 0; i < 200; i++) {
+        assertEquals(Integer.valueOf(i), impl.events.get(i));
+      }
+      
+      assertEquals(1, failures.size());
+      assertTrue(failures.get(0).getCause() instanceof IllegalArgumentException);
+    } finally {
+      Thread.setDefaultUncaughtExceptionHandler(prev);
+    }
+  }
+}
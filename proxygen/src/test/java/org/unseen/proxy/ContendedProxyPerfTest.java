@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.unseen.proxy.gen.ProxyFactory;
+import org.unseen.proxy.gen.ProxyMode;
+import org.unseen.proxy.impl.MethodMeter;
+import org.unseen.proxy.impl.ProxyClassLoader;
+import org.unseen.proxy.impl.ProxyFactoryImpl;
+import org.unseen.proxy.ref.LockPolicy;
+import org.unseen.proxy.ref.Ref;
+import org.unseen.proxy.ref.RefUnboundException;
+import org.unseen.proxy.ref.Refs;
+import org.unseen.proxy.ref.Transformers;
+
+/**
+ * Measures how proxy calls scale when many threads hit the same imported
+ * service.
+ *
+ * @author Todor Boev
+ * @version $Revision$
+ */
+public class ContendedProxyPerfTest extends TestCase {
+  /** Percentage deviation we consider to be equality */
+  private double EPSILON = 10;
+
+  private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+  private static final int CALLS = 200000;
+
+  public interface Probe {
+    int touch(int val);
+  }
+
+  public static class ProbeImpl implements Probe {
+    public int touch(int val) {
+      return val + 1;
+    }
+  }
+
+  /**
+   *
+   */
+  public void testOptimisticBinding() {
+    Ref<Probe, Probe> ref = Refs.ref(Transformers.<Probe>identity());
+    Probe probe = proxy(ref, ProxyMode.OPTIMISTIC);
+
+    try {
+      probe.touch(0);
+      fail();
+    } catch (RefUnboundException exc) {
+      assertSame(ref, exc.ref());
+    }
+
+    ref.bind(new ProbeImpl(), null);
+    assertEquals(1, probe.touch(0));
+    assertTrue(probe.equals(probe));
+
+    ref.unbind();
+    try {
+      probe.touch(0);
+      fail();
+    } catch (RefUnboundException exc) {
+      assertSame(ref, exc.ref());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testDirectBinding() {
+    Ref<Probe, Probe> ref = Refs.ref(Transformers.<Probe>identity());
+    Probe probe = proxy(ref, ProxyMode.DIRECT);
+
+    try {
+      probe.touch(0);
+      fail();
+    } catch (RefUnboundException exc) {
+      assertSame(ref, exc.ref());
+    }
+
+    ref.bind(new ProbeImpl(), null);
+    assertEquals(1, probe.touch(0));
+    assertTrue(probe.equals(probe));
+
+    /* The call site must follow the updates */
+    ref.update(new ProbeImpl() {
+      @Override
+      public int touch(int val) {
+        return val + 2;
+      }
+    }, null);
+    assertEquals(2, probe.touch(0));
+
+    ref.unbind();
+    try {
+      probe.touch(0);
+      fail();
+    } catch (RefUnboundException exc) {
+      assertSame(ref, exc.ref());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testMeteredBinding() {
+    Ref<Probe, Probe> ref = Refs.ref(Transformers.<Probe>identity());
+    Probe probe = proxy(ref, ProxyMode.METERED);
+
+    try {
+      probe.touch(0);
+      fail();
+    } catch (RefUnboundException exc) {
+      assertSame(ref, exc.ref());
+    }
+
+    ref.bind(new ProbeImpl(), null);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i + 1, probe.touch(i));
+    }
+    assertTrue(probe.equals(probe));
+
+    MethodMeter touch = null;
+    List<MethodMeter> meters = MethodMeter.meters(probe);
+    for (MethodMeter meter : meters) {
+      if (meter.method().startsWith("touch(")) {
+        touch = meter;
+      }
+    }
+    assertNotNull(touch);
+    assertEquals(11, touch.calls());
+    assertEquals(1, touch.errors());
+
+    long sum = 0;
+    for (long count : touch.latencies()) {
+      sum += count;
+    }
+    assertEquals(touch.calls(), sum);
+
+    /* Unmetered proxies have no meters */
+    assertTrue(MethodMeter.meters(proxy(ref, ProxyMode.LOCKED)).isEmpty());
+  }
+
+  /**
+   *
+   */
+  public void testScaling() throws InterruptedException {
+    Probe locked = bound(ProxyMode.LOCKED, LockPolicy.READ_WRITE);
+    Probe striped = bound(ProxyMode.LOCKED, LockPolicy.STRIPED);
+    Probe optimistic = bound(ProxyMode.OPTIMISTIC, LockPolicy.READ_WRITE);
+    Probe metered = bound(ProxyMode.METERED, LockPolicy.READ_WRITE);
+
+    System.out.println("Calls per thread: " + CALLS);
+
+    /* Warm up */
+    run(locked, THREADS[THREADS.length - 1]);
+    run(striped, THREADS[THREADS.length - 1]);
+    run(optimistic, THREADS[THREADS.length - 1]);
+    run(metered, THREADS[THREADS.length - 1]);
+
+    long lockedTime = 0;
+    long stripedTime = 0;
+    long optimisticTime = 0;
+    long meteredTime = 0;
+
+    for (int threads : THREADS) {
+      lockedTime = run(locked, threads);
+      stripedTime = run(striped, threads);
+      optimisticTime = run(optimistic, threads);
+      meteredTime = run(metered, threads);
+
+      System.out.printf("%3d threads: Locked %6d Striped %6d Optimistic %6d Metered %6d calls/ms\n",
+          threads, throughput(threads, lockedTime), throughput(threads, stripedTime),
+          throughput(threads, optimisticTime), throughput(threads, meteredTime));
+    }
+
+    double perc = 100*((double) optimisticTime/lockedTime - 1);
+    assertTrue(perc < EPSILON);
+  }
+
+  private static long throughput(int threads, long nanos) {
+    return (long) threads * CALLS * 1000000 / Math.max(nanos, 1);
+  }
+
+  /**
+   * @return the wall time in nanoseconds for all threads to finish their calls.
+   */
+  private static long run(final Probe probe, int threads) throws InterruptedException {
+    System.gc();
+
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+
+    for (int i = 0; i < threads; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+
+          int dummy = 0;
+          for (int i = 0; i < CALLS; i++) {
+            dummy = probe.touch(dummy);
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+
+    long now = System.nanoTime();
+    start.countDown();
+    done.await();
+    return System.nanoTime() - now;
+  }
+
+  private static Probe bound(ProxyMode mode, LockPolicy policy) {
+    Ref<Probe, Probe> ref = Refs.ref(Transformers.<Probe>identity(), policy);
+    ref.bind(new ProbeImpl(), null);
+    return proxy(ref, mode);
+  }
+
+  private static Probe proxy(Ref<Probe, Probe> ref, ProxyMode mode) {
+    ProxyClassLoader loader = new ProxyClassLoader(ContendedProxyPerfTest.class.getClassLoader());
+    ProxyFactory fact = new ProxyFactoryImpl(loader, mode);
+
+    return fact.proxy(Probe.class, ref);
+  }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy;
+
+import junit.framework.TestCase;
+
+import org.unseen.proxy.gen.Cacheable;
+import org.unseen.proxy.gen.ProxyMode;
+import org.unseen.proxy.impl.ProxyClassLoader;
+import org.unseen.proxy.impl.ProxyFactoryImpl;
+import org.unseen.proxy.ref.Ref;
+import org.unseen.proxy.ref.RefUnboundException;
+import org.unseen.proxy.ref.Refs;
+import org.unseen.proxy.ref.Transformers;
+
+/**
+ * @author Todor Boev
+ */
+public class MemoizedProxyTest extends TestCase {
+  public interface Lookup {
+    @Cacheable
+    long square(int val);
+
+    @Cacheable(size = 2)
+    String name(String first, char initial);
+
+    @Cacheable(ttl = 1)
+    double random();
+
+    int calls();
+  }
+
+  public static class LookupImpl implements Lookup {
+    private final int offset;
+    private int calls;
+
+    public LookupImpl(int offset) {
+      this.offset = offset;
+    }
+
+    public long square(int val) {
+      calls++;
+      return (long) val * val + offset;
+    }
+
+    public String name(String first, char initial) {
+      calls++;
+      return first + " " + initial + ". " + offset;
+    }
+
+    public double random() {
+      calls++;
+      return Math.random();
+    }
+
+    public int calls() {
+      return calls;
+    }
+  }
+
+  private Ref<Lookup, Lookup> ref;
+  private ProxyFactoryImpl fact;
+  private Lookup lookup;
+
+  @Override
+  protected void setUp() {
+    ref = Refs.ref(Transformers.<Lookup>identity());
+    fact = new ProxyFactoryImpl(new ProxyClassLoader(MemoizedProxyTest.class.getClassLoader()),
+        ProxyMode.MEMOIZED);
+    lookup = fact.proxy(Lookup.class, ref);
+  }
+
+  /**
+   *
+   */
+  public void testHits() {
+    ref.bind(new LookupImpl(0), null);
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals(16, lookup.square(4));
+      assertEquals(25, lookup.square(5));
+      assertEquals("John D. 0", lookup.name("John", 'D'));
+    }
+    assertEquals(3, lookup.calls());
+  }
+
+  /**
+   *
+   */
+  public void testEviction() throws InterruptedException {
+    ref.bind(new LookupImpl(0), null);
+
+    lookup.name("A", 'a');
+    lookup.name("B", 'b');
+    lookup.name("C", 'c');
+    lookup.name("A", 'a');
+    lookup.name("B", 'b');
+    lookup.name("C", 'c');
+    /* Only two names fit so at least one of the later calls misses */
+    assertTrue(lookup.calls() > 3);
+
+    double rnd = lookup.random();
+    Thread.sleep(10);
+    assertTrue(rnd != lookup.random());
+  }
+
+  /**
+   *
+   */
+  public void testInvalidation() {
+    ref.bind(new LookupImpl(0), null);
+    assertEquals(16, lookup.square(4));
+
+    ref.update(new LookupImpl(1), null);
+    assertEquals(17, lookup.square(4));
+
+    ref.unbind();
+    try {
+      lookup.square(4);
+      fail();
+    } catch (RefUnboundException exc) {
+      assertSame(ref, exc.ref());
+    }
+
+    ref.bind(new LookupImpl(2), null);
+    assertEquals(18, lookup.square(4));
+    assertEquals(1, lookup.calls());
+  }
+
+  /**
+   * All proxies of a class over a Ref share the results.
+   */
+  public void testSharing() {
+    Lookup other = fact.proxy(Lookup.class, ref);
+
+    ref.bind(new LookupImpl(0), null);
+    assertEquals(16, lookup.square(4));
+    assertEquals(16, other.square(4));
+    assertEquals(1, lookup.calls());
+  }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.unseen.proxy.impl.MethodTable;
+import org.unseen.proxy.impl.ProxyClassLoader;
+
+/**
+ * @author Todor Boev
+ */
+public class MethodTableTest extends TestCase {
+  public interface Left {
+    void left();
+    void both();
+  }
+  
+  public interface Right {
+    void right();
+    void both();
+  }
+  
+  public interface Bottom extends Left, Right {
+    String NAME = "bottom" + System.currentTimeMillis();
+    
+    void bottom();
+  }
+  
+  /**
+   * The super interfaces come first and every method is listed once.
+   */
+  public void testFlattening() {
+    List<String> names = new ArrayList<String>();
+    for (MethodTable.Method m : MethodTable.get(Bottom.class).methods()) {
+      names.add(m.name);
+    }
+    
+    assertEquals(Arrays.asList("left", "both", "right", "bottom"), names);
+  }
+  
+  /**
+   * Proxy classes for the same interface must share it's table.
+   */
+  public void testSharing() {
+    new ProxyClassLoader(getClass().getClassLoader()).loadProxyClass(Bottom.class);
+    
+    long hits = MethodTable.hits();
+    long read = MethodTable.bytesRead();
+    
+    new ProxyClassLoader(getClass().getClassLoader()).loadProxyClass(Bottom.class);
+    
+    assertTrue(MethodTable.hits() > hits);
+    assertEquals(read, MethodTable.bytesRead());
+  }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.unseen.proxy.ExampleBenchmark.Example;
+import org.unseen.proxy.ExampleBenchmark.ExampleImpl;
+import org.unseen.proxy.gen.Proxy;
+import org.unseen.proxy.gen.ProxyFactory;
+import org.unseen.proxy.gen.ProxyMode;
+import org.unseen.proxy.impl.ProxyClassLoader;
+import org.unseen.proxy.impl.ProxyFactoryImpl;
+import org.unseen.proxy.ref.Interfaces;
+import org.unseen.proxy.ref.Ref;
+import org.unseen.proxy.ref.Refs;
+import org.unseen.proxy.ref.Transformers;
+
+/**
+ * Wall-clock measurements of the proxy generator. They only print what they
+ * measure so they are kept out of the unit tests. Run them by hand with
+ * -Dtest=ProxyBenchmark.
+ * 
+ * @author Todor Boev
+ */
+public class ProxyBenchmark extends TestCase {
+  /**
+   * How much a direct proxy saves over a locked one.
+   */
+  public void testDirect() {
+    int reps = 1000000;
+    
+    ExampleBenchmark base = new ExampleBenchmark("Base", new ExampleImpl(), reps, reps);
+    ExampleBenchmark locked = new ExampleBenchmark("Locked", proxy(ProxyMode.LOCKED), reps, reps);
+    ExampleBenchmark direct = new ExampleBenchmark("Direct", proxy(ProxyMode.DIRECT), reps, reps);
+    
+    long baseTime = base.time();
+    locked.benckmark(baseTime);
+    direct.benckmark(baseTime);
+  }
+  
+  /**
+   * How many proxy classes can be generated and defined per second.
+   */
+  public void testGeneration() {
+    long duration = 1000000000L; // 1 second
+    
+    /* Warm up */
+    generate(duration);
+    
+    int classes = generate(duration);
+    System.out.println("Generated " + classes + " proxy classes/s");
+    assertTrue(classes > 0);
+  }
+  
+  /**
+   * How many proxy classes can be generated per second when many bundles are
+   * activated at the same time. Every activation brings a loader of it's own.
+   */
+  public void testParallelGeneration() throws Exception {
+    long duration = 1000000000L; // 1 second
+    int threads = Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+    
+    /* Warm up */
+    generate(duration, threads);
+    
+    int serial = generate(duration, 1);
+    int parallel = generate(duration, threads);
+    System.out.println("Generated " + serial + " proxy classes/s in 1 thread, " + parallel 
+        + " proxy classes/s in " + threads + " threads");
+    assertTrue(parallel > 0);
+  }
+  
+  /**
+   * How many proxies can be created per second one by one and in bulk.
+   */
+  public void testInstantiation() {
+    int count = 100000;
+    
+    ProxyFactory fact = new ProxyFactoryImpl(new ProxyClassLoader(ProxyBenchmark.class.getClassLoader()));
+    List<Ref<Example, Example>> refs = new ArrayList<Ref<Example, Example>>();
+    for (int i = 0; i < count; i++) {
+      refs.add(Refs.ref(Transformers.<Example>identity()));
+    }
+    
+    /* Warm up */
+    for (Ref<Example, Example> ref : refs) {
+      fact.proxy(Example.class, ref);
+    }
+    fact.proxies(Example.class, refs);
+    
+    long start = System.nanoTime();
+    for (Ref<Example, Example> ref : refs) {
+      fact.proxy(Example.class, ref);
+    }
+    long single = System.nanoTime() - start;
+    
+    start = System.nanoTime();
+    List<Example> proxies = fact.proxies(Example.class, refs);
+    long bulk = System.nanoTime() - start;
+    
+    System.out.println("Created " + count * 1000000L / single + " proxies/ms one by one, " 
+        + count * 1000000L / bulk + " proxies/ms in bulk");
+    
+    assertEquals(count, proxies.size());
+    for (int i = 0; i < count; i++) {
+      assertSame(refs.get(i), ((Proxy<?, ?>) proxies.get(i)).proxyControl());
+    }
+  }
+  
+  /**
+   * How much heap a proxy takes on top of it's Ref for the fleet sizes we
+   * run.
+   */
+  public void testFootprint() {
+    ClassLoader cl = ProxyBenchmark.class.getClassLoader();
+    
+    for (ProxyMode mode : new ProxyMode[] {ProxyMode.LOCKED, ProxyMode.DIRECT}) {
+      ProxyFactory fact = new ProxyFactoryImpl(new ProxyClassLoader(cl), mode);
+      
+      for (int count : new int[] {10000, 100000}) {
+        List<Ref<Example, Example>> refs = new ArrayList<Ref<Example, Example>>(count);
+        for (int i = 0; i < count; i++) {
+          refs.add(Refs.ref(Transformers.<Example>identity()));
+        }
+        /* Warm up */
+        fact.proxy(Example.class, refs.get(0));
+        
+        long before = usedHeap();
+        List<Example> proxies = fact.proxies(Example.class, refs);
+        long after = usedHeap();
+        
+        System.out.println(mode + ": " + (after - before) / count + " bytes/proxy for " + count 
+            + " proxies");
+        assertEquals(count, proxies.size());
+      }
+    }
+  }
+  
+  /**
+   * Every export asks for the interfaces of the exported class. How many
+   * exports per ms can do that with and without the cache.
+   */
+  public void testInterfaces() {
+    Class<?>[] types = { ArrayList.class, HashMap.class, 
+        ConcurrentHashMap.class, Thread.class, ExampleImpl.class };
+    int reps = 1000000;
+    
+    /* Warm up */
+    walk(types, reps);
+    lookup(types, reps);
+    
+    long before = walk(types, reps);
+    long after = lookup(types, reps);
+    System.out.println("Export interfaces: " + reps * 1000000L / before + " exports/ms walking the hierarchy, " 
+        + reps * 1000000L / after + " exports/ms cached");
+  }
+  
+  private static int generate(final long duration, int threads) throws InterruptedException {
+    final AtomicInteger count = new AtomicInteger();
+    
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread() {
+        @Override
+        public void run() {
+          count.addAndGet(generate(duration));
+        }
+      };
+      workers[i].start();
+    }
+    
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return count.get();
+  }
+  
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+  
+  private static long walk(Class<?>[] types, int reps) {
+    int sink = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < reps; i++) {
+      /* What Interfaces.interfaces() did before the cache */
+      List<String> names = new ArrayList<String>();
+      for (Class<?> cl = types[i % types.length]; cl != null; cl = cl.getSuperclass()) {
+        for (Class<?> iface : cl.getInterfaces()) {
+          names.add(iface.getName());
+        }
+      }
+      sink += names.toArray(new String[names.size()]).length;
+    }
+    long res = System.nanoTime() - start;
+    assertTrue(sink > 0);
+    return Math.max(1, res);
+  }
+  
+  private static long lookup(Class<?>[] types, int reps) {
+    int sink = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < reps; i++) {
+      sink += Interfaces.interfaces(types[i % types.length]).length;
+    }
+    long res = System.nanoTime() - start;
+    assertTrue(sink > 0);
+    return Math.max(1, res);
+  }
+  
+  private static int generate(long duration) {
+    int count = 0;
+    long end = System.nanoTime() + duration;
+    
+    ClassLoader cl = ProxyBenchmark.class.getClassLoader();
+    for (; System.nanoTime() < end; count++) {
+      new ProxyClassLoader(cl).loadProxyClass(Example.class, ProxyMode.values()[count % 3]);
+    }
+    
+    return count;
+  }
+  
+  private static Example proxy(ProxyMode mode) {
+    Ref<Example, Example> ref = Refs.ref(Transformers.<Example>identity());
+    ref.bind(new ExampleImpl(), null);
+    
+    ProxyClassLoader loader = new ProxyClassLoader(ProxyBenchmark.class.getClassLoader());
+    return new ProxyFactoryImpl(loader, mode).proxy(Example.class, ref);
+  }
+}
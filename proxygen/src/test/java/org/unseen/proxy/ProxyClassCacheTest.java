@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.TestCase;
+
+import org.unseen.proxy.ExampleBenchmark.Example;
+import org.unseen.proxy.gen.ProxyMode;
+import org.unseen.proxy.impl.ProxyClassCache;
+import org.unseen.proxy.impl.ProxyClassLoader;
+
+/**
+ * @author Todor Boev
+ */
+public class ProxyClassCacheTest extends TestCase {
+  private File dir;
+  
+  @Override
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("proxycache", "");
+    dir.delete();
+  }
+  
+  @Override
+  protected void tearDown() {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+  
+  /**
+   * A restarted JVM must pick the class from disk instead of generating it.
+   */
+  public void testRestart() throws Exception {
+    ProxyClassCache disk = new ProxyClassCache(dir);
+    
+    Class<?> first = new ProxyClassLoader(getClass().getClassLoader(), disk)
+      .loadProxyClass(Example.class);
+    assertEquals(0, disk.hits());
+    assertEquals(1, dir.listFiles().length);
+    
+    /* Simulate a restart */
+    disk = new ProxyClassCache(dir);
+    Class<?> second = new ProxyClassLoader(getClass().getClassLoader(), disk)
+      .loadProxyClass(Example.class);
+    assertEquals(1, disk.hits());
+    assertEquals(0, disk.misses());
+    
+    assertNotSame(first, second);
+    assertEquals(first.getName(), second.getName());
+    assertTrue(Example.class.isAssignableFrom(second));
+  }
+  
+  /**
+   * A broken entry must be replaced by a freshly generated class.
+   */
+  public void testBrokenEntry() throws Exception {
+    ProxyClassCache disk = new ProxyClassCache(dir);
+    
+    FileOutputStream out = new FileOutputStream(
+        new File(dir, ProxyClassCache.key(Example.class, ProxyMode.LOCKED) + ".class"));
+    out.write(new byte[] {1, 2, 3});
+    out.close();
+    
+    Class<?> pclass = new ProxyClassLoader(getClass().getClassLoader(), disk)
+      .loadProxyClass(Example.class);
+    assertTrue(Example.class.isAssignableFrom(pclass));
+    /* Replaced in place without leftovers */
+    assertEquals(1, dir.listFiles().length);
+    
+    disk = new ProxyClassCache(dir);
+    new ProxyClassLoader(getClass().getClassLoader(), disk).loadProxyClass(Example.class);
+    assertEquals(1, disk.hits());
+  }
+  
+  /**
+   * Every mode and every type must have it's own key.
+   */
+  public void testKeys() {
+    String locked = ProxyClassCache.key(Example.class, ProxyMode.LOCKED);
+    
+    assertNotNull(locked);
+    assertEquals(locked, ProxyClassCache.key(Example.class, ProxyMode.LOCKED));
+    assertFalse(locked.equals(ProxyClassCache.key(Example.class, ProxyMode.DIRECT)));
+    assertFalse(locked.equals(ProxyClassCache.key(Runnable.class, ProxyMode.LOCKED)));
+  }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.unseen.proxy.gen.ProxyMode;
+import org.unseen.proxy.impl.ProxyClassLoader;
+import org.unseen.proxy.impl.ProxyClassSpace;
+
+/**
+ * Checks that proxy classes do not outlive the types they proxy.
+ * 
+ * @author Todor Boev
+ */
+public class ProxyClassUnloadingTest {
+  private static final int GENERATIONS = 10000;
+  
+  public interface Generation {
+    int next(int val);
+  }
+  
+  /**
+   * Simulates a bundle update: loads it's own copy of {@link Generation}.
+   */
+  private static class GenerationLoader extends ClassLoader {
+    private static final String NAME = Generation.class.getName();
+    
+    public GenerationLoader() {
+      super(ProxyClassUnloadingTest.class.getClassLoader());
+    }
+    
+    @Override
+    protected synchronized Class<?> loadClass(String name, boolean resolve) 
+      throws ClassNotFoundException {
+      
+      if (!NAME.equals(name)) {
+        return super.loadClass(name, resolve);
+      }
+      
+      Class<?> res = findLoadedClass(name);
+      if (res == null) {
+        byte[] raw = read(name.replace('.', '/') + ".class");
+        res = defineClass(name, raw, 0, raw.length);
+      }
+      return res;
+    }
+  }
+  
+  /**
+   * The proxy class must be shared by all proxies of the same type.
+   */
+  @Test
+  public void testSameType() throws Exception {
+    ProxyClassLoader loader = new ProxyClassLoader(getClass().getClassLoader());
+    
+    Class<?> type = new GenerationLoader().loadClass(Generation.class.getName());
+    assertSame(loader.loadProxyClass(type), loader.loadProxyClass(type));
+    assertNotSame(loader.loadProxyClass(type), loader.loadProxyClass(type, ProxyMode.DIRECT));
+    
+    /* A new version of the type must get a new proxy class */
+    Class<?> other = new GenerationLoader().loadClass(Generation.class.getName());
+    Class<?> proxy = loader.loadProxyClass(other);
+    assertNotSame(loader.loadProxyClass(type), proxy);
+    assertTrue(other.isAssignableFrom(proxy));
+  }
+  
+  /**
+   * The proxy class must outlive it's instances for as long as the type lives.
+   */
+  @Test
+  public void testKept() throws Exception {
+    ProxyClassLoader loader = new ProxyClassLoader(getClass().getClassLoader());
+    
+    Class<?> type = new GenerationLoader().loadClass(Generation.class.getName());
+    int proxy = System.identityHashCode(loader.loadProxyClass(type));
+    collect();
+    assertEquals(proxy, System.identityHashCode(loader.loadProxyClass(type)));
+  }
+  
+  /**
+   * A long lived proxy class loader must not keep the proxy classes of dead
+   * types.
+   */
+  @Test
+  public void testUnloading() throws Exception {
+    unloading(new ProxyClassLoader(getClass().getClassLoader()));
+  }
+  
+  /**
+   * Neither must the space shared by the whole JVM.
+   */
+  @Test
+  public void testSystemUnloading() throws Exception {
+    unloading(new ProxyClassLoader(getClass().getClassLoader(), ProxyClassSpace.system()));
+  }
+  
+  private static void unloading(ProxyClassLoader loader) throws Exception {
+    ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+    
+    /* Warm up */
+    generate(loader, 100);
+    exhaust();
+    
+    int before = classes.getLoadedClassCount();
+    
+    generate(loader, GENERATIONS);
+    exhaust();
+    
+    int after = classes.getLoadedClassCount();
+    System.out.println("Classes loaded before " + before + " after " + after + " of "
+        + GENERATIONS + " generations");
+    
+    /* Every generation loads two classes */
+    assertTrue(after - before < GENERATIONS / 10);
+  }
+  
+  private static void generate(ProxyClassLoader loader, int count) throws Exception {
+    for (int i = 0; i < count; i++) {
+      Class<?> type = new GenerationLoader().loadClass(Generation.class.getName());
+      assertTrue(type.isAssignableFrom(loader.loadProxyClass(type)));
+    }
+  }
+  
+  /**
+   * The cache lets go of the proxy classes it keeps for later only when the
+   * memory runs out.
+   */
+  private static void exhaust() throws InterruptedException {
+    try {
+      List<long[]> hog = new ArrayList<long[]>();
+      while (true) {
+        hog.add(new long[1 << 20]);
+      }
+    } catch (OutOfMemoryError err) {
+      /* Every soft reference is cleared by now */
+    }
+    collect();
+  }
+  
+  private static void collect() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+  }
+  
+  private static byte[] read(String path) {
+    InputStream in = ProxyClassUnloadingTest.class.getClassLoader().getResourceAsStream(path);
+    try {
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buff = new byte[1024];
+        for (int len; (len = in.read(buff)) > 0;) {
+          out.write(buff, 0, len);
+        }
+        return out.toByteArray();
+      } finally {
+        in.close();
+      }
+    } catch (IOException exc) {
+      throw new RuntimeException(exc);
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import junit.framework.TestCase;
+
+import org.unseen.proxy.ExampleBenchmark.Example;
+import org.unseen.proxy.ExampleBenchmark.ExampleImpl;
+import org.unseen.proxy.gen.ProxyMode;
+import org.unseen.proxy.impl.ProxyClassLoader;
+import org.unseen.proxy.impl.ProxyFactoryImpl;
+import org.unseen.proxy.impl.ProxyGenerator;
+import org.unseen.proxy.ref.Ref;
+import org.unseen.proxy.ref.Refs;
+import org.unseen.proxy.ref.Transformers;
+
+/**
+ * @author Todor Boev
+ */
+public class ProxyGeneratorTest extends TestCase {
+  private File dir;
+  
+  @Override
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("proxygen", "");
+    dir.delete();
+    dir.mkdirs();
+  }
+  
+  @Override
+  protected void tearDown() {
+    delete(dir);
+  }
+  
+  /**
+   * A class generated at build time must be used instead of generating a new
+   * one.
+   */
+  public void testPregenerated() throws Exception {
+    ClassLoader cl = getClass().getClassLoader();
+    
+    File file = new ProxyGenerator(dir, ProxyMode.DIRECT, cl).generate(Example.class.getName());
+    assertTrue(file.isFile());
+    
+    /* Simulate a bundle that packages the generated class */
+    ClassLoader bundle = new URLClassLoader(new URL[] {dir.toURI().toURL()}, cl);
+    ProxyClassLoader loader = new ProxyClassLoader(bundle);
+    
+    Class<?> pclass = loader.loadProxyClass(Example.class, ProxyMode.DIRECT);
+    assertSame(bundle, pclass.getClassLoader());
+    
+    /* The instantiator is packaged along and can't be replaced */
+    Field holder = pclass.getDeclaredField("$instantiator");
+    assertTrue(Modifier.isPrivate(holder.getModifiers()));
+    assertTrue(Modifier.isFinal(holder.getModifiers()));
+    
+    /* Only the mode that was generated is picked up */
+    assertNotSame(bundle, loader.loadProxyClass(Example.class).getClassLoader());
+    
+    Ref<Example, Example> ref = Refs.ref(Transformers.<Example>identity());
+    ref.bind(new ExampleImpl(), null);
+    
+    Example proxy = new ProxyFactoryImpl(loader, ProxyMode.DIRECT).proxy(Example.class, ref);
+    assertSame(pclass, proxy.getClass());
+    assertEquals(new ExampleImpl().action(2), proxy.action(2));
+  }
+  
+  /**
+   * The client space must be asked once per name until the loader is
+   * invalidated.
+   */
+  public void testLookups() throws Exception {
+    final int[] lookups = new int[1];
+    ClassLoader bundle = new ClassLoader(getClass().getClassLoader()) {
+      @Override
+      protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        lookups[0]++;
+        return super.loadClass(name, resolve);
+      }
+    };
+    ProxyClassLoader loader = new ProxyClassLoader(bundle);
+    
+    for (int i = 0; i < 3; i++) {
+      assertSame(Example.class, loader.loadClass(Example.class.getName()));
+      try {
+        loader.loadClass(Example.class.getName() + "Missing");
+        fail();
+      } catch (ClassNotFoundException exc) {
+        /* Expected */
+      }
+    }
+    assertEquals(2, lookups[0]);
+    
+    loader.invalidate();
+    assertSame(Example.class, loader.loadClass(Example.class.getName()));
+    assertEquals(3, lookups[0]);
+  }
+  
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
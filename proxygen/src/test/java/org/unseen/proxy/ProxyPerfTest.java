@@ -15,8 +15,16 @@
  */
 package org.unseen.proxy;
 
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
 
 import junit.framework.TestCase;
 
@@ -25,8 +33,12 @@ import org.unseen.proxy.ExampleBenchmark.ExampleImpl;
 import org.unseen.proxy.ExampleBenchmark.SyncExampleImpl;
 import org.unseen.proxy.gen.Proxy;
 import org.unseen.proxy.gen.ProxyFactory;
+import org.unseen.proxy.gen.ProxyMode;
 import org.unseen.proxy.impl.ProxyClassLoader;
+import org.unseen.proxy.impl.ProxyClassSpace;
 import org.unseen.proxy.impl.ProxyFactoryImpl;
+import org.unseen.proxy.impl.ProxyInstantiator;
+import org.unseen.proxy.ref.Interfaces;
 import org.unseen.proxy.ref.Ref;
 import org.unseen.proxy.ref.Refs;
 import org.unseen.proxy.ref.Transformers;
@@ -80,6 +92,94 @@ public class ProxyPerfTest extends TestCase {
     assertTrue(dynamicOverhead - syncreflexiveOverhead < EPSILON);
   }
   
+  /**
+   * Threads that ask one loader for the same proxy at the same time must get
+   * the same class.
+   */
+  public void testConcurrentLoad() throws Exception {
+    final int threads = 8;
+    final ProxyClassLoader loader = new ProxyClassLoader(ProxyPerfTest.class.getClassLoader());
+    final CyclicBarrier start = new CyclicBarrier(threads);
+    final ProxyInstantiator[] res = new ProxyInstantiator[threads];
+    
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final int no = i;
+      workers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            res[no] = loader.loadInstantiator(Example.class, ProxyMode.OPTIMISTIC);
+          } catch (Exception exc) {
+            throw new RuntimeException(exc);
+          }
+        }
+      };
+      workers[i].start();
+    }
+    
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    for (ProxyInstantiator inst : res) {
+      assertSame(res[0], inst);
+    }
+  }
+  
+  /**
+   * How many classes are saved when many bundles import the same type.
+   */
+  public void testSharing() {
+    int bundles = 200;
+    ClassLoader cl = ProxyPerfTest.class.getClassLoader();
+    ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+    
+    long before = classes.getTotalLoadedClassCount();
+    List<Class<?>> own = new ArrayList<Class<?>>();
+    for (int i = 0; i < bundles; i++) {
+      own.add(new ProxyClassLoader(cl).loadProxyClass(Example.class, ProxyMode.OPTIMISTIC));
+    }
+    long unshared = classes.getTotalLoadedClassCount() - before;
+    
+    ProxyClassSpace space = new ProxyClassSpace(null);
+    before = classes.getTotalLoadedClassCount();
+    List<Class<?>> shared = new ArrayList<Class<?>>();
+    for (int i = 0; i < bundles; i++) {
+      ProxyClassLoader loader = new ProxyClassLoader(cl, space);
+      shared.add(loader.loadProxyClass(Example.class, ProxyMode.OPTIMISTIC));
+    }
+    long sharing = classes.getTotalLoadedClassCount() - before;
+    
+    System.out.println(bundles + " bundles loaded " + unshared + " classes with loaders of their own, " 
+        + sharing + " classes with a shared " + space);
+    
+    assertEquals(1, space.generated());
+    assertEquals(bundles, space.loads());
+    assertEquals(bundles - 1, space.saved());
+    for (Class<?> pclass : shared) {
+      assertSame(shared.get(0), pclass);
+    }
+    assertTrue(own.get(0) != own.get(1));
+  }
+  
+  /**
+   * Every export asks for the interfaces of the exported class. They must be
+   * complete, free of duplicates and safe to change.
+   */
+  public void testInterfaces() {
+    List<String> flat = Arrays.asList(Interfaces.flatInterfaces(ArrayList.class));
+    assertTrue(flat.contains(Collection.class.getName()));
+    assertTrue(flat.contains(Iterable.class.getName()));
+    assertEquals(flat.size(), new HashSet<String>(flat).size());
+    
+    /* A caller can't spoil the cached names for the others */
+    String[] mine = Interfaces.interfaces(ArrayList.class);
+    String first = mine[0];
+    mine[0] = null;
+    assertEquals(first, Interfaces.interfaces(ArrayList.class)[0]);
+  }
+  
   private static Example base() {
     return new ExampleImpl();
   }
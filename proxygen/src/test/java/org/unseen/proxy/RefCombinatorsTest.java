@@ -15,15 +15,25 @@
  */
 package org.unseen.proxy;
 
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
 import org.unseen.proxy.ref.Ref;
+import org.unseen.proxy.ref.RefException;
 import org.unseen.proxy.ref.RefFactory;
 import org.unseen.proxy.ref.Refs;
 import org.unseen.proxy.ref.Transformer;
+import org.unseen.proxy.ref.Transformers;
+import org.unseen.proxy.ref.UpdatableTransformerAdapter;
 
 
 /**
@@ -113,6 +123,140 @@ public class RefCombinatorsTest {
     excersise(Refs.combinator(C).from(B).from(A).factory().ref());
   }
   
+  /**
+   * Test a chain runs as one Ref and undoes the links that did map when a
+   * later link fails.
+   */
+  @Test
+  public void testRollback() {
+    final List<String> log = new ArrayList<String>();
+    final boolean[] broken = {true};
+    
+    Transformer<String, String> fail = new Transformer<String, String>() {
+      public String map(String arg, Map<String, Object> props) {
+        if (broken[0]) {
+          throw new IllegalStateException();
+        }
+        log.add("map " + arg);
+        return arg + "!";
+      }
+
+      public void unmap(String val, String arg, Map<String, Object> props) {
+        log.add("unmap " + val);
+      }
+    };
+    
+    Ref<String, String> ref = Refs.combinator(record("a", log)).to(record("b", log)).to(fail)
+      .factory().ref();
+    
+    try {
+      ref.bind("x", null);
+      fail();
+    } catch (RefException exc) {
+      assertTrue(exc.getCause() instanceof IllegalStateException);
+    }
+    assertSame(Ref.State.UNBOUND, ref.state());
+    assertEquals(Arrays.asList("map x", "map xa", "unmap xab", "unmap xa"), log);
+    
+    log.clear();
+    broken[0] = false;
+    ref.bind("x", null);
+    assertEquals("xab!", ref.val());
+    ref.unbind();
+    assertEquals(Arrays.asList("map x", "map xa", "map xab", "unmap xab!", "unmap xab", "unmap xa"), 
+        log);
+  }
+  
+  /**
+   * Test an attribute change is patched in place only when every link can
+   * follow it. A chain with a link that can't is treated like any other
+   * transformer that can't.
+   */
+  @Test
+  public void testUpdate() {
+    final List<String> log = new ArrayList<String>();
+    
+    Transformer<String, StringBuilder> patch = 
+      new UpdatableTransformerAdapter<String, StringBuilder>() {
+      public StringBuilder map(String arg, Map<String, Object> props) {
+        log.add("map " + arg);
+        return new StringBuilder(arg + props.get("p"));
+      }
+      
+      @Override
+      public void update(StringBuilder val, String arg, Map<String, Object> props) {
+        val.setLength(0);
+        val.append(arg + props.get("p"));
+      }
+    };
+    
+    Transformer<StringBuilder, StringBuilder> quote = 
+      new UpdatableTransformerAdapter<StringBuilder, StringBuilder>() {
+      public StringBuilder map(StringBuilder arg, Map<String, Object> props) {
+        log.add("map " + arg);
+        return new StringBuilder("'" + arg + "'");
+      }
+      
+      @Override
+      public void update(StringBuilder val, StringBuilder arg, Map<String, Object> props) {
+        val.setLength(0);
+        val.append("'" + arg + "'");
+      }
+    };
+    
+    Ref<String, StringBuilder> ref = Refs.combinator(patch).to(quote).factory().ref();
+    ref.bind("x", Collections.<String, Object>singletonMap("p", 1));
+    StringBuilder val = ref.val();
+    assertEquals("'x1'", val.toString());
+    
+    ref.update(null, Collections.<String, Object>singletonMap("p", 2));
+    assertSame(val, ref.val());
+    assertEquals("'x2'", val.toString());
+    assertEquals(2, ref.attributes().get("p"));
+    assertEquals(Arrays.asList("map x", "map x1"), log);
+    
+    ref.update("y", Collections.<String, Object>singletonMap("p", 3));
+    assertEquals("'y3'", ref.val().toString());
+    assertEquals(Arrays.asList("map x", "map x1", "map y", "map y3"), log);
+    
+    /* The first link can't follow so nothing is patched */
+    log.clear();
+    ref = Refs.combinator(record("a", log)).to(patch).factory().ref();
+    ref.bind("x", Collections.<String, Object>singletonMap("p", 1));
+    val = ref.val();
+    
+    ref.update(null, Collections.<String, Object>singletonMap("p", 2));
+    assertSame(val, ref.val());
+    assertEquals("xa1", val.toString());
+    assertEquals(2, ref.attributes().get("p"));
+    assertEquals(Arrays.asList("map x", "map xa"), log);
+    
+    /* Stateless links never go stale so they don't stop the patching */
+    log.clear();
+    ref = Refs.combinator(Transformers.<String>identity()).to(patch)
+      .from(Transformers.<String>identity()).factory().ref();
+    ref.bind("x", Collections.<String, Object>singletonMap("p", 1));
+    val = ref.val();
+    
+    ref.update(null, Collections.<String, Object>singletonMap("p", 2));
+    assertSame(val, ref.val());
+    assertEquals("x2", val.toString());
+    assertEquals(Arrays.asList("map x"), log);
+  }
+  
+  private static Transformer<String, String> record(final String suffix, final List<String> log) {
+    return new Transformer<String, String>() {
+      public String map(String arg, Map<String, Object> props) {
+        log.add("map " + arg);
+        return arg + suffix;
+      }
+
+      public void unmap(String val, String arg, Map<String, Object> props) {
+        log.add("unmap " + val);
+      }
+    };
+  }
+  
   private static void excersise(Ref<String, String> ref) {
     System.out.println("------------------------");
 
@@ -0,0 +1,540 @@
+/**
+ * Copyright (C) 2008 Todor Boev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.unseen.proxy;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.unseen.proxy.gen.ProxyMode;
+import org.unseen.proxy.impl.CallSite;
+import org.unseen.proxy.impl.ProxyClassLoader;
+import org.unseen.proxy.impl.ProxyFactoryImpl;
+import org.unseen.proxy.ref.FailPolicy;
+import org.unseen.proxy.ref.LockPolicy;
+import org.unseen.proxy.ref.Pinned;
+import org.unseen.proxy.ref.Ref;
+import org.unseen.proxy.ref.RefListenerAdapter;
+import org.unseen.proxy.ref.RefUnboundException;
+import org.unseen.proxy.ref.Refs;
+import org.unseen.proxy.ref.TransformerAdapter;
+import org.unseen.proxy.ref.Transformers;
+
+/**
+ * @author Todor Boev
+ */
+public class RefImplTest {
+  public interface Service {
+    void call();
+  }
+
+  /** A service whose calls block until released */
+  private static class SlowService implements Service {
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    public void call() {
+      entered.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        /* Ignore */
+      }
+    }
+  }
+
+  private ExecutorService exec;
+  private SlowService service;
+  private CountDownLatch unmapped;
+  private Ref<Service, Service> ref;
+  private Service proxy;
+
+  @Before
+  public void setUp() {
+    exec = Executors.newSingleThreadExecutor();
+    service = new SlowService();
+    unmapped = new CountDownLatch(1);
+    bind(LockPolicy.READ_WRITE);
+  }
+
+  @After
+  public void tearDown() {
+    service.release.countDown();
+    exec.shutdown();
+  }
+
+  /**
+   * The unbind must wait for the call in progress but the caller of unbind
+   * must not.
+   */
+  @Test
+  public void testGraceUnbind() throws Exception {
+    final Service bound = service;
+    final Service[] unbinding = new Service[1];
+    ref.addListener(new RefListenerAdapter() {
+      @Override
+      public void unbinding() {
+        unbinding[0] = ref.val();
+      }
+    });
+    
+    Thread caller = callInBackground();
+
+    ref.lock().lock();
+    try {
+      ref.unbind(exec, 10, TimeUnit.SECONDS);
+      
+      /* A caller that got in before keeps its delegate */
+      assertSame(bound, ref.val());
+    } finally {
+      ref.lock().unlock();
+    }
+    assertEquals(1, ref.inFlight());
+    assertEquals(Ref.State.UNBOUND, ref.binding().state());
+    assertFalse(unmapped.await(100, TimeUnit.MILLISECONDS));
+
+    /* New callers fail right away */
+    try {
+      proxy.call();
+      fail();
+    } catch (RefUnboundException exc) {
+      /* Expected */
+    }
+
+    service.release.countDown();
+    caller.join();
+
+    assertTrue(unmapped.await(10, TimeUnit.SECONDS));
+    awaitState(Ref.State.UNBOUND);
+    assertEquals(0, ref.inFlight());
+    assertEquals(0, ref.stragglers());
+    
+    /* The listeners still see the delegate that goes away */
+    assertSame(bound, unbinding[0]);
+
+    /* The Ref can be reused */
+    ref.bind(new SlowService(), null);
+    assertEquals(Ref.State.BOUND, ref.state());
+  }
+
+  /**
+   * The striped lock must count the calls in progress just like the standard
+   * one.
+   */
+  @Test
+  public void testStripedGraceUnbind() throws Exception {
+    bind(LockPolicy.STRIPED);
+    testGraceUnbind();
+  }
+
+  /**
+   * The optimistic policy does not count the callers so the unbind must give
+   * them the whole grace period.
+   */
+  @Test
+  public void testOptimisticGraceUnbind() throws Exception {
+    bind(LockPolicy.OPTIMISTIC);
+    Thread caller = callInBackground();
+    
+    long start = System.nanoTime();
+    ref.unbind(exec, 200, TimeUnit.MILLISECONDS);
+    assertFalse(unmapped.await(100, TimeUnit.MILLISECONDS));
+    assertTrue(unmapped.await(10, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    
+    service.release.countDown();
+    caller.join();
+  }
+  
+  /**
+   * A reader that takes no lock must never see a Ref that is bound to
+   * nothing.
+   */
+  @Test
+  public void testOptimisticReads() throws Exception {
+    bind(LockPolicy.OPTIMISTIC);
+    
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicInteger torn = new AtomicInteger();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        while (!done.get()) {
+          try {
+            if (ref.val() == null) {
+              torn.incrementAndGet();
+            }
+          } catch (RefUnboundException exc) {
+            /* Expected while unbound */
+          }
+        }
+      }
+    };
+    reader.start();
+    
+    for (int i = 0; i < 10000; i++) {
+      ref.unbind();
+      ref.bind(service, null);
+    }
+    done.set(true);
+    reader.join();
+    
+    assertEquals(0, torn.get());
+  }
+  
+  /**
+   * All direct proxies of a Ref must share one call site so the Ref does not
+   * collect a listener for every proxy ever made.
+   */
+  @Test
+  public void testSharedCallSite() {
+    ProxyFactoryImpl fact = new ProxyFactoryImpl(new ProxyClassLoader(
+        RefImplTest.class.getClassLoader()), ProxyMode.DIRECT);
+    
+    Service p1 = fact.proxy(Service.class, ref);
+    CallSite site = CallSite.of(ref);
+    Service p2 = fact.proxy(Service.class, ref);
+    assertSame(site, ref.attachment(CallSite.class));
+    assertSame(site, CallSite.of(ref));
+    
+    ref.unbind();
+    failure(p1);
+    failure(p2);
+    
+    SlowService next = new SlowService();
+    next.release.countDown();
+    ref.bind(next, null);
+    p1.call();
+    p2.call();
+    assertSame(site.target(), next);
+  }
+  
+  /**
+   * Every policy must support the complete lifecycle.
+   */
+  @Test
+  public void testLockPolicies() {
+    for (LockPolicy policy : LockPolicy.values()) {
+      bind(policy);
+      assertEquals(Ref.State.BOUND, ref.state());
+
+      ref.lock().lock();
+      try {
+        assertTrue(service == ref.val());
+      } finally {
+        ref.lock().unlock();
+      }
+
+      ref.unbind();
+      assertEquals(Ref.State.UNBOUND, ref.state());
+      assertEquals(0, ref.inFlight());
+    }
+  }
+
+  /**
+   * The unbind must not wait for the call in progress longer than the timeout.
+   */
+  @Test
+  public void testGraceUnbindTimeout() throws Exception {
+    Thread caller = callInBackground();
+
+    ref.unbind(exec, 50, TimeUnit.MILLISECONDS);
+
+    assertTrue(unmapped.await(10, TimeUnit.SECONDS));
+    awaitState(Ref.State.UNBOUND);
+    assertEquals(1, ref.inFlight());
+    assertEquals(1, ref.stragglers());
+
+    service.release.countDown();
+    caller.join();
+    assertEquals(0, ref.inFlight());
+  }
+
+  /**
+   * A pinned Ref must stay bound while the caller works with it's delegate.
+   */
+  @Test
+  public void testWithBound() {
+    int res = Refs.withBound(proxy, new Pinned<Service, Integer>() {
+      public Integer run(Service val) {
+        assertSame(service, val);
+        assertEquals(1, ref.inFlight());
+        return 42;
+      }
+    });
+    assertEquals(42, res);
+    assertEquals(0, ref.inFlight());
+    
+    ref.unbind();
+    try {
+      Refs.withBound(ref, new Pinned<Service, Void>() {
+        public Void run(Service val) {
+          fail();
+          return null;
+        }
+      });
+      fail();
+    } catch (RefUnboundException exc) {
+      /* Expected */
+    }
+    assertEquals(0, ref.inFlight());
+  }
+  
+  /**
+   * Several Refs must be pinned together and handed over in the order they
+   * were passed.
+   */
+  @Test
+  public void testWithBoundMany() {
+    final Ref<Service, Service> first = ref;
+    final Service firstService = service;
+    
+    bind(LockPolicy.STRIPED);
+    
+    Refs.withBound(new Pinned<Object[], Void>() {
+      public Void run(Object[] vals) {
+        assertSame(service, vals[0]);
+        assertSame(firstService, vals[1]);
+        assertSame(service, vals[2]);
+        /* The striped lock counts a reentrant caller only once */
+        assertEquals(1, ref.inFlight());
+        assertEquals(1, first.inFlight());
+        return null;
+      }
+    }, proxy, first, ref);
+    
+    assertEquals(0, ref.inFlight());
+    assertEquals(0, first.inFlight());
+  }
+  
+  /**
+   * A thread can hold the read locks of many striped Refs at once and let go
+   * of them in any order.
+   */
+  @Test
+  public void testStripedHolds() {
+    Object[] refs = new Object[6];
+    for (int i = 0; i < refs.length; i++) {
+      Ref<Service, Service> r = Refs.ref(Transformers.<Service>identity(), LockPolicy.STRIPED);
+      r.bind(service, null);
+      refs[i] = r;
+    }
+    
+    Refs.withBound(new Pinned<Object[], Void>() {
+      public Void run(Object[] vals) {
+        for (Object val : vals) {
+          assertSame(service, val);
+        }
+        return null;
+      }
+    }, refs);
+    
+    for (Object r : refs) {
+      assertEquals(0, ((Ref<?, ?>) r).inFlight());
+      assertTrue(((Ref<?, ?>) r).lock().tryLock());
+      ((Ref<?, ?>) r).lock().unlock();
+    }
+  }
+  
+  /**
+   * A group is built once and pinned over and over with the same array.
+   */
+  @Test
+  public void testWithBoundGroup() {
+    final Ref<Service, Service> first = ref;
+    final Service firstService = service;
+    
+    bind(LockPolicy.STRIPED);
+    
+    Pinned.Group group = Refs.group(proxy, first);
+    final Object[][] seen = new Object[1][];
+    Pinned<Object[], Void> fn = new Pinned<Object[], Void>() {
+      public Void run(Object[] vals) {
+        assertSame(service, vals[0]);
+        assertSame(firstService, vals[1]);
+        assertEquals(1, ref.inFlight());
+        assertEquals(1, first.inFlight());
+        assertTrue(seen[0] == null || seen[0] == vals);
+        seen[0] = vals;
+        return null;
+      }
+    };
+    
+    for (int i = 0; i < 3; i++) {
+      Refs.withBound(group, fn);
+      assertEquals(0, ref.inFlight());
+      assertEquals(0, first.inFlight());
+      /* The delegates are not kept past the pin */
+      assertEquals(null, seen[0][0]);
+    }
+  }
+  
+  /**
+   * The fast fail policy must throw the same exception without a stack trace
+   * to every caller of an unbound Ref no matter how the proxy reaches it.
+   */
+  @Test
+  public void testFastFail() {
+    for (ProxyMode mode : ProxyMode.values()) {
+      /* These don't call the service in the caller */
+      if (mode == ProxyMode.ASYNC || mode == ProxyMode.BATCHED) {
+        continue;
+      }
+      
+      Ref<Service, Service> fast = Refs.ref(Transformers.<Service>identity(), LockPolicy.READ_WRITE,
+          FailPolicy.FAST);
+      Service probe = new ProxyFactoryImpl(new ProxyClassLoader(RefImplTest.class.getClassLoader()),
+          mode).proxy(Service.class, fast);
+      
+      RefUnboundException first = failure(probe);
+      assertSame(fast, first.ref());
+      assertEquals(0, first.getStackTrace().length);
+      assertSame(first, failure(probe));
+      assertEquals(2, fast.failures());
+    }
+    
+    /* The default policy must keep the stack trace of every caller */
+    assertNotSame(failure(unbound()), failure(unbound()));
+  }
+  
+  /**
+   * A Ref with a fallback must hand it to the callers while it is unbound.
+   */
+  @Test
+  public void testFallback() {
+    for (ProxyMode mode : ProxyMode.values()) {
+      /* These don't call the service in the caller */
+      if (mode == ProxyMode.ASYNC || mode == ProxyMode.BATCHED) {
+        continue;
+      }
+      
+      Ref<Service, Service> fallback = Refs.ref(Transformers.<Service>identity(),
+          LockPolicy.READ_WRITE, FailPolicy.FAST, Refs.defaults(Service.class));
+      Service probe = new ProxyFactoryImpl(new ProxyClassLoader(RefImplTest.class.getClassLoader()),
+          mode).proxy(Service.class, fallback);
+      
+      probe.call();
+      assertEquals(1, fallback.failures());
+      
+      fallback.bind(service, null);
+      service.release.countDown();
+      probe.call();
+      assertEquals(1, fallback.failures());
+      
+      fallback.unbind();
+      probe.call();
+      assertEquals(2, fallback.failures());
+    }
+  }
+  
+  /**
+   * A damped call must wait for the Ref to come back but not longer than the
+   * damping.
+   */
+  @Test
+  public void testDamped() throws Exception {
+    ref.unbind();
+    ref.damp(10, TimeUnit.SECONDS);
+    proxy = new ProxyFactoryImpl(new ProxyClassLoader(RefImplTest.class.getClassLoader()),
+        ProxyMode.DAMPED).proxy(Service.class, ref);
+    
+    service = new SlowService();
+    Thread caller = new Thread() {
+      @Override
+      public void run() {
+        proxy.call();
+      }
+    };
+    caller.start();
+    assertFalse(service.entered.await(100, TimeUnit.MILLISECONDS));
+    
+    ref.bind(service, null);
+    assertTrue(service.entered.await(10, TimeUnit.SECONDS));
+    service.release.countDown();
+    caller.join();
+    
+    ref.unbind();
+    ref.damp(50, TimeUnit.MILLISECONDS);
+    long start = System.nanoTime();
+    failure(proxy);
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(0, ref.inFlight());
+  }
+  
+  private Service unbound() {
+    ref.unbind();
+    return proxy;
+  }
+  
+  private static RefUnboundException failure(Service probe) {
+    try {
+      probe.call();
+    } catch (RefUnboundException exc) {
+      return exc;
+    }
+    throw new AssertionError("Expected " + RefUnboundException.class.getName());
+  }
+  
+  private void bind(LockPolicy policy) {
+    ref = Refs.ref(new TransformerAdapter<Service, Service>() {
+      public Service map(Service arg, Map<String, Object> props) {
+        return arg;
+      }
+
+      @Override
+      public void unmap(Service val, Service arg, Map<String, Object> props) {
+        unmapped.countDown();
+      }
+    }, policy);
+    ref.bind(service, null);
+
+    proxy = new ProxyFactoryImpl(new ProxyClassLoader(RefImplTest.class.getClassLoader()))
+      .proxy(Service.class, ref);
+  }
+
+  private Thread callInBackground() throws InterruptedException {
+    Thread caller = new Thread() {
+      @Override
+      public void run() {
+        proxy.call();
+      }
+    };
+    caller.start();
+    service.entered.await();
+    return caller;
+  }
+
+  private void awaitState(Ref.State expected) throws InterruptedException {
+    for (int i = 0; i < 1000 && expected != ref.state(); i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(expected, ref.state());
+  }
+}
@@ -19,6 +19,8 @@ import static org.unseen.gyro.Attributes.entry;
 import static org.unseen.gyro.Attributes.map;
 import static org.unseen.proxy.ref.Refs.and;
 
+import java.util.concurrent.TimeUnit;
+
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceRegistration;
 import org.unseen.gyro.dsl.RefContainerImpl;
@@ -38,8 +40,9 @@ public class Activator extends RefContainerImpl {
   
   @Override
   public void configure() throws Exception {
-    final Format format = require(Format.class).single();
-    final Date date = require(Date.class).single();
+    /* Let the greetings wait out a short restart of the format or date */
+    final Format format = require(Format.class).damped(1, TimeUnit.SECONDS).single();
+    final Date date = require(Date.class).damped(1, TimeUnit.SECONDS).single();
     
     final Ref<?, ?> deps = and(format, date);
     
@@ -23,7 +23,7 @@ import static com.google.inject.util.Types.newParameterizedType;
 import java.util.Map;
 
 import org.unseen.gyro.dsl.RefContainerImpl;
-import org.unseen.proxy.ref.TransformerAdapter;
+import org.unseen.proxy.ref.UpdatableTransformerAdapter;
 
 import test.exporter.hello.Hello;
 import test.exporter.worker.Worker;
@@ -70,24 +70,38 @@ public class Activator extends RefContainerImpl {
            * good Guice support here a Guice key() must be supplied instead. This
            * will let the Transformer into the Guice club.
            */
-          .from(Hello.class, new TransformerAdapter<Hello, RichHello>() {
-            public RichHello map(final Hello delegate, final Map<String, Object> attrs) {
-              return new RichHello() {
-                public void hello(String title, String name) {
-                  /*
-                   * We can access the service properties at this point. It is a
-                   * good practice to do so in wrapper classes like this one in
-                   * order to limit the dependencies to the proxy API into this
-                   * dynamic transformations layer.
-                   * 
-                   * FIX If the attrs get updated this will not be seen by the
-                   * transformer because the attrs are not mutated - they are replaced
-                   * with a new map. At the same time the transformer currently has
-                   * no method the gets called when just the attributes change. 
-                   */
-                  delegate.hello(title + " " + name + " (" + attrs.get(Hello.PROP) + ")");
-                }
-              };
+          .from(Hello.class, new UpdatableTransformerAdapter<Hello, RichHello>() {
+            class AttributedHello implements RichHello {
+              private final Hello delegate;
+              private volatile Map<String, Object> attrs;
+              
+              public AttributedHello(Hello delegate, Map<String, Object> attrs) {
+                this.delegate = delegate;
+                this.attrs = attrs;
+              }
+              
+              public void hello(String title, String name) {
+                /*
+                 * We can access the service properties at this point. It is a
+                 * good practice to do so in wrapper classes like this one in
+                 * order to limit the dependencies to the proxy API into this
+                 * dynamic transformations layer.
+                 */
+                delegate.hello(title + " " + name + " (" + attrs.get(Hello.PROP) + ")");
+              }
+            }
+            
+            public RichHello map(Hello delegate, Map<String, Object> attrs) {
+              return new AttributedHello(delegate, attrs);
+            }
+            
+            /*
+             * Called when only the service properties change. The wrapper
+             * picks up the new ones and stays in place.
+             */
+            @Override
+            public void update(RichHello val, Hello delegate, Map<String, Object> attrs) {
+              ((AttributedHello) val).attrs = attrs;
             }
           })
           .multiple()
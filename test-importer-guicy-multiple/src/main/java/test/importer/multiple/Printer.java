@@ -15,8 +15,10 @@
  */
 package test.importer.multiple;
 
+import org.unseen.proxy.ref.Pinned;
 import org.unseen.proxy.ref.RefListenerAdapter;
 import org.unseen.proxy.ref.RefUnboundException;
+import org.unseen.proxy.ref.Refs;
 
 import test.exporter.worker.Worker;
 
@@ -31,6 +33,20 @@ public class Printer extends RefListenerAdapter implements Runnable {
   private final Iterable<RichHello> services;
   private Worker worker;
   
+  private static final String[][] GUESTS = {
+    {"Dr.", "Importer"}, {"Mr.", "Exporter"}, {"Ms.", "Worker"}
+  };
+  
+  /** Greets every guest through one service that stays pinned meanwhile */
+  private final Pinned<RichHello, Void> greet = new Pinned<RichHello, Void>() {
+    public Void run(RichHello hello) {
+      for (String[] guest : GUESTS) {
+        hello.hello(guest[0], guest[1]);
+      }
+      return null;
+    }
+  };
+  
   @Inject
   public Printer(Iterable<RichHello> services) {
     this.services = services;
@@ -49,9 +65,13 @@ public class Printer extends RefListenerAdapter implements Runnable {
   }
   
   public void run() {
+    /* 
+     * Pin one service at a time for all of it's greetings so the others can
+     * come and go meanwhile
+     */
     for (RichHello hello : services) {
       try {
-        hello.hello("Dr.", "Importer");
+        Refs.withBound(hello, greet);
       } catch (RefUnboundException rue) {
         System.out.println("Unbound " + rue.ref());
       }